@@ -22,6 +22,7 @@ finally:
 sys = __import__("sys")
 import threading
 import logging
+import time
 import IceImport
 import Ice
 import uuid
@@ -30,6 +31,96 @@ IceImport.load("Glacier2_Router_ice")
 import Glacier2
 
 
+class AdaptiveBlockSize(object):
+    """
+    Chooses the size of the blocks of a transfer, e.g. RawFileStore reads
+    and writes or Exporter reads, from the measured round-trip time and
+    throughput of the link. Blocks are made large enough for the latency
+    of a call to be a small fraction (1 / ratio) of its duration, so high
+    latency links get larger blocks, but never outside of the configured
+    bounds, which memory-constrained clients can lower. The size changes
+    by at most a factor of two per block. Thread-safe, so that parallel
+    transfers can share an instance. Typical usage::
+
+        sizer = client.getAdaptiveBlockSize(prx)
+        while offset < size:
+            n = min(sizer.next(), size - offset)
+            start = time.time()
+            data = prx.read(offset, n)
+            sizer.record(len(data), time.time() - start)
+    """
+
+    def __init__(self, initial=None, minimum=64 * 1024, maximum=None,
+                 ratio=50, alpha=0.3):
+        """
+        :param initial:     Size of the first block, by default
+                            omero.constants.DEFAULTBLOCKSIZE
+        :param minimum:     Smallest block size
+        :param maximum:     Largest block size, by default four times
+                            omero.constants.DEFAULTBLOCKSIZE
+        :param ratio:       Target ratio of transfer time to latency
+        :param alpha:       Weight of new throughput measurements
+        """
+        if initial is None:
+            initial = omero.constants.DEFAULTBLOCKSIZE
+        if maximum is None:
+            maximum = 4 * omero.constants.DEFAULTBLOCKSIZE
+        if minimum < 1 or maximum < minimum:
+            raise ValueError("Invalid bounds: %s-%s" % (minimum, maximum))
+        self.minimum = int(minimum)
+        self.maximum = int(maximum)
+        self.ratio = ratio
+        self.alpha = alpha
+        self.size = self._clamp(initial)
+        self.rtt = None
+        self.throughput = None
+        self.lock = threading.Lock()
+
+    def _clamp(self, size):
+        return int(max(self.minimum, min(self.maximum, size)))
+
+    def measure(self, prx):
+        """
+        Seeds the round-trip time with an ice_ping of the given proxy.
+        """
+        start = time.time()
+        prx.ice_ping()
+        self.record(0, time.time() - start)
+
+    def next(self):
+        """
+        Returns the size to use for the next block.
+        """
+        with self.lock:
+            return self.size
+
+    def record(self, nbytes, seconds):
+        """
+        Records that a block of nbytes took seconds to transfer, and
+        adapts the block size accordingly.
+        """
+        if seconds <= 0:
+            return
+        with self.lock:
+            # No call is faster than the round trip, so the fastest one
+            # so far is the best estimate available
+            if self.rtt is None or seconds < self.rtt:
+                self.rtt = seconds
+            if nbytes <= 0:
+                return
+            busy = seconds - self.rtt
+            if busy <= 0:
+                busy = seconds
+            rate = nbytes / busy
+            if self.throughput is None:
+                self.throughput = rate
+            else:
+                self.throughput += self.alpha * (rate - self.throughput)
+            target = self.throughput * self.rtt * self.ratio
+            target = max(self.size / 2, min(self.size * 2, target))
+            self.size = self._clamp(target)
+
+
 class BaseClient(object):
     """
     Central client-side blitz entry point, and should be in sync with
@@ -490,6 +581,30 @@ class BaseClient(object):
         except:
             return omero.constants.DEFAULTBLOCKSIZE
 
+    def getAdaptiveBlockSize(self, prx=None):
+        """
+        Returns a new :class:`AdaptiveBlockSize` if "omero.block_size.adaptive"
+        is true, otherwise None, in which case getDefaultBlockSize() should
+        be used. Its bounds are "omero.block_size.min" and
+        "omero.block_size.max", and it starts from getDefaultBlockSize().
+        If a proxy is given, it is pinged to measure the round-trip time.
+        """
+        try:
+            adaptive = self.getProperty("omero.block_size.adaptive")
+        except:
+            return None
+        if adaptive.lower() not in ("true", "1"):
+            return None
+        kwargs = dict()
+        for key in ("min", "max"):
+            value = self.getProperty("omero.block_size.%s" % key)
+            if value:
+                kwargs[key + "imum"] = int(value)
+        rv = AdaptiveBlockSize(self.getDefaultBlockSize(), **kwargs)
+        if prx is not None:
+            rv.measure(prx)
+        return rv
+
     def joinSession(self, session):
         """
         Uses the given session uuid as name
@@ -825,17 +940,30 @@ class BaseClient(object):
 
         return ofile
 
-    def write_stream(self, file, prx, block_size=1024*1024):
+    def write_stream(self, file, prx, block_size=1024*1024, adaptive=None):
+        """
+        Writes the contents of file to the RawFileStore prx in blocks of
+        block_size, or of the sizes chosen by adaptive, an
+        :class:`AdaptiveBlockSize`, which is taken from
+        getAdaptiveBlockSize() if not given.
+        """
+        if adaptive is None:
+            adaptive = self.getAdaptiveBlockSize(prx)
         offset = 0
         while True:
+            if adaptive is not None:
+                block_size = adaptive.next()
             block = file.read(block_size)
             if not block:
                 break
+            start = time.time()
             prx.write(block, offset, len(block))
+            if adaptive is not None:
+                adaptive.record(len(block), time.time() - start)
             offset += len(block)
 
     def download(self, ofile, filename=None, block_size=1024*1024,
-                 filehandle=None):
+                 filehandle=None, adaptive=None):
         if not self.__sf:
             raise omero.ClientError("No session. Use createSession first.")
 
@@ -853,6 +981,8 @@ class BaseClient(object):
                 block_size = ofile.size.val
 
             prx.setFileId(ofile.id.val, ctx)
+            if adaptive is None:
+                adaptive = self.getAdaptiveBlockSize(prx)
 
             size = ofile.size.val
             offset = 0
@@ -868,10 +998,23 @@ class BaseClient(object):
                         "filename and filehandle specified.")
 
             try:
+                while adaptive is not None and offset < size:
+                    block_size = min(adaptive.next(), size - offset)
+                    start = time.time()
+                    block = prx.read(offset, block_size)
+                    adaptive.record(len(block), time.time() - start)
+                    if len(block) < block_size:
+                        raise omero.ClientError(
+                            "Read %s bytes at offset %s of file %s, "
+                            "expected %s" % (len(block), offset,
+                                             ofile.id.val, block_size))
+                    filehandle.write(block)
+                    offset += len(block)
                 while (offset+block_size) < size:
                     filehandle.write(prx.read(offset, block_size))
                     offset += block_size
-                filehandle.write(prx.read(offset, (size-offset)))
+                if offset < size or not size:
+                    filehandle.write(prx.read(offset, (size-offset)))
             finally:
                 if filename:
                     filehandle.close()
@@ -16,7 +16,7 @@
 import os
 
 import warnings
-from collections import defaultdict
+from collections import defaultdict, deque, OrderedDict
 from types import IntType, LongType, UnicodeType, ListType
 from types import BooleanType, TupleType, StringType, StringTypes
 from datetime import datetime
@@ -41,6 +41,7 @@ import Glacier2
 
 import traceback
 import time
+import itertools
 import array
 import math
 from decimal import Decimal
@@ -99,7 +100,7 @@ def omero_type(val):
         return val
 
 
-def fileread(fin, fsize, bufsize):
+def fileread(fin, fsize, bufsize, adaptive=None):
     """
     Reads everything from fin, in chunks of bufsize.
 
@@ -110,20 +111,27 @@ def fileread(fin, fsize, bufsize):
     :param fsize: total number of bytes to read
     :type bufsize: int
     :param fsize: size of each chunk of data read from fin
+    :type adaptive: :class:`omero.clients.AdaptiveBlockSize`
+    :param adaptive: if given, chooses the size of each chunk instead
     :rtype: string
     :return: string buffer holding the contents read from the file
     """
     # Read it all in one go
     p = 0
-    rv = ''
+    rv = []
     try:
         while p < fsize:
+            if adaptive is not None:
+                bufsize = adaptive.next()
             s = min(bufsize, fsize-p)
-            rv += fin.read(p, s)
+            start = time.time()
+            rv.append(fin.read(p, s))
+            if adaptive is not None:
+                adaptive.record(s, time.time() - start)
             p += s
     finally:
         fin.close()
-    return rv
+    return ''.join(rv)
 
 
 def fileread_gen(fin, fsize, bufsize):
@@ -1550,6 +1558,10 @@ class _BlitzGateway (object):
         self._defaultOmeroGroup = None
         self._defaultOmeroUser = None
         self._maxPlaneSize = None
+        self._compressPixels = False
+        self._renderedTileCache = None
+        self._thumbnailCache = None
+        self._thumbnailAtlases = OrderedDict()
 
         self._connected = False
         self._user = None
@@ -1676,6 +1688,60 @@ class _BlitzGateway (object):
                 int(c.getConfigValue('omero.pixeldata.max_plane_height')))
         return self._maxPlaneSize
 
+    def setPixelsCompression(self, compress=True):
+        """
+        Enables or disables compression of the pixel data transferred by
+        the RawPixelsStores used by :class:`PixelsWrapper` methods such as
+        :meth:`PixelsWrapper.getTiles`. Compression is done by the Ice
+        protocol and decoded transparently, so the returned data is the
+        same. It reduces transfer times over slow links at the cost of CPU
+        time on both sides. Individual stores can be switched with
+        :meth:`ProxyObjectWrapper.setCompress`.
+
+        :param compress:    True to compress transfers
+        """
+        self._compressPixels = compress
+
+    def isPixelsCompression(self):
+        """
+        Returns True if pixel data transfers are compressed.
+        See :meth:`setPixelsCompression`.
+        """
+        return self._compressPixels
+
+    def setRenderedTileCache(self, cache):
+        """
+        Sets the cache consulted by :meth:`ImageWrapper.renderJpeg` and
+        :meth:`ImageWrapper.renderJpegRegion` before calling the rendering
+        engine, or None to disable caching, which is the default.
+
+        :param cache:   :class:`omero.gateway.utils.RenderedTileCache`
+        """
+        self._renderedTileCache = cache
+
+    def getRenderedTileCache(self):
+        """
+        Returns the cache of rendered planes and regions or None.
+        See :meth:`setRenderedTileCache`.
+        """
+        return self._renderedTileCache
+
+    def setThumbnailCache(self, cache):
+        """
+        Sets the persistent cache consulted by :meth:`getThumbnailSet` and
+        :meth:`streamThumbnailSet` before requesting thumbnails from the
+        server, or None to disable caching, which is the default.
+
+        :param cache:   :class:`omero.gateway.utils.ThumbnailCache`
+        """
+        self._thumbnailCache = cache
+
+    def getThumbnailCache(self):
+        """
+        Returns the thumbnail cache or None. See :meth:`setThumbnailCache`.
+        """
+        return self._thumbnailCache
+
     def getClientSettings(self):
         """
         Returns all client properties matching omero.client.*
@@ -1765,6 +1831,19 @@ class _BlitzGateway (object):
         """
         return self.c.getProperty(k)
 
+    def getServerKey(self):
+        """
+        Returns "host-port" of the server of this connection, which keeps
+        the local caches and mirrors of different servers apart.
+
+        :return:    Server key
+        :rtype:     String
+        """
+        host = self.getProperty("omero.host") or self.host or "localhost"
+        port = self.getProperty("omero.port") or self.port or \
+            omero.constants.GLACIER2PORT
+        return "%s-%s" % (host, port)
+
     def clone(self):
         """
         Returns a new instance of this class, with all matching properties.
@@ -3893,6 +3972,187 @@ class _BlitzGateway (object):
                 del json_data[True][json_data[True].index(fromid)]
         return json_data
 
+    # HQL queries of the group and ID of the Images in each type of
+    # container, see _getImageIdsInSet
+    _IMAGE_IDS_IN_SET = {
+        "Image": ("select i.details.group.id, i.id from Image i "
+                  "where i.id in (:ids)"),
+        "Dataset": ("select l.child.details.group.id, l.child.id "
+                    "from DatasetImageLink l "
+                    "where l.parent.id in (:ids)"),
+        "Project": ("select dil.child.details.group.id, dil.child.id "
+                    "from DatasetImageLink dil, ProjectDatasetLink pdl "
+                    "where dil.parent.id = pdl.child.id "
+                    "and pdl.parent.id in (:ids)"),
+        "Plate": ("select ws.image.details.group.id, ws.image.id "
+                  "from WellSample ws "
+                  "where ws.well.plate.id in (:ids)"),
+        "Screen": ("select ws.image.details.group.id, ws.image.id "
+                   "from WellSample ws, ScreenPlateLink spl "
+                   "where ws.well.plate.id = spl.child.id "
+                   "and spl.parent.id in (:ids)"),
+        "Plateacquisition": ("select ws.image.details.group.id, ws.image.id "
+                             "from WellSample ws "
+                             "where ws.plateAcquisition.id in (:ids)"),
+        "Pixels": ("select p.image.details.group.id, p.image.id "
+                   "from Pixels p where p.id in (:ids)"),
+        }
+    _IMAGE_IDS_IN_SET["Acquisition"] = _IMAGE_IDS_IN_SET["Plateacquisition"]
+
+    def _getImageIdsInSet(self, to_type, ids):
+        """
+        Returns the IDs of the Images in the given containers, in all the
+        groups of the current user, grouped by the Images' group.
+
+        :param to_type:     'Image', 'Dataset', 'Project', 'Plate', 'Screen',
+                            'PlateAcquisition' or 'Pixels'
+        :param ids:         IDs of the containers
+        :return:            Dict of {groupId: [sorted imageIds]}
+        """
+        to_type = to_type.title()
+        if to_type not in self._IMAGE_IDS_IN_SET:
+            raise ValueError("Unsupported container type: %s" % to_type)
+        ids = [long(i) for i in ids]
+        rv = dict()
+        if not ids:
+            return rv
+        params = omero.sys.ParametersI()
+        params.addIds(ids)
+        ctx = self.SERVICE_OPTS.copy()
+        ctx.setOmeroGroup(-1)
+        rows = self.getQueryService().projection(
+            self._IMAGE_IDS_IN_SET[to_type], params, ctx)
+        for row in rows:
+            rv.setdefault(row[0].val, set()).add(row[1].val)
+        return dict((gid, sorted(iids)) for (gid, iids) in rv.items())
+
+    def _processImagesInChunks(self, call, imageIds, chunkSize, workers,
+                               progress, cancel):
+        """
+        Calls call(rsettings, chunk, ctx) for chunks of imageIds on a pool
+        of worker threads, see :meth:`applySettingsToSetInChunks`. Each
+        chunk only holds Images of one group and ctx is set to that group.
+        call must return the IDs for which it succeeded.
+
+        :param imageIds:    Dict of {groupId: [imageIds]} as returned by
+                            :meth:`_getImageIdsInSet`
+        :return:            Dict of {imageId: True or False} for every
+                            image of the chunks which were processed
+        """
+        from omero.util.concurrency import OrderedPrefetcher
+
+        chunks = []
+        for gid in sorted(imageIds):
+            ids = imageIds[gid]
+            chunks.extend((gid, ids[i:i + chunkSize])
+                          for i in range(0, len(ids), chunkSize))
+        total = sum(len(ids) for ids in imageIds.values())
+        rsettings = self.getRenderingSettingsService()
+
+        def load(ctx, chunk):
+            if cancel is not None and cancel.is_set():
+                return None
+            gid, ids = chunk
+            groupCtx = self.SERVICE_OPTS.copy()
+            groupCtx.setOmeroGroup(gid)
+            try:
+                return set(call(rsettings, ids, groupCtx))
+            except Exception:
+                logger.error("Failed to process images %s..%s",
+                             ids[0], ids[-1], exc_info=True)
+                return set()
+
+        outcomes = {}
+        done = 0
+        for idx, succeeded in enumerate(OrderedPrefetcher(
+                chunks, load, workers=workers, look_ahead=workers)):
+            if succeeded is None:
+                continue    # Cancelled
+            chunkOutcomes = dict((i, i in succeeded) for i in chunks[idx][1])
+            outcomes.update(chunkOutcomes)
+            done += len(chunkOutcomes)
+            if progress is not None:
+                progress(done, total, chunkOutcomes)
+        return outcomes
+
+    def applySettingsToSetInChunks(self, fromid, to_type, toids,
+                                   chunkSize=500, workers=4, progress=None,
+                                   cancel=None):
+        """
+        Applies the rendering settings from one image to others, like
+        :meth:`applySettingsToSet`, but in chunks of images processed in
+        parallel. This keeps each call to the server short, so that large
+        sets such as whole screens neither time out nor block a server
+        thread for minutes. The Images are looked up in all groups and
+        each chunk is sent in the group of its Images.
+
+        :param fromid:      ID of Image to copy settings from.
+        :param to_type:     Type of toids, see :meth:`applySettingsToSet`
+        :param toids:       IDs of the containers of the target Images
+        :param chunkSize:   Number of Images per call to the server
+        :param workers:     Number of calls in flight at once
+        :param progress:    Optional callable progress(done, total,
+                            outcomes) invoked on the calling thread after
+                            each chunk with the number of Images processed
+                            so far, the total number and the dict of
+                            outcomes of the chunk
+        :param cancel:      Optional threading.Event. Once set, no further
+                            chunks are sent; chunks already in flight
+                            complete and are reported.
+        :return:            Dict of {imageId: True or False} for the
+                            processed Images, or False if the settings of
+                            fromid can't be read.
+        """
+        fromimg = self.getObject("Image", fromid)
+        if fromimg is None or not fromimg.canAnnotate():
+            return False
+        frompid = fromimg.getPixelsId()
+        if to_type is None:
+            to_type = "Image"
+        imageIds = dict()
+        for (gid, ids) in self._getImageIdsInSet(to_type, toids).items():
+            ids = [i for i in ids if i != fromid]
+            if ids:
+                imageIds[gid] = ids
+
+        def call(rsettings, chunk, ctx):
+            return rsettings.applySettingsToSet(
+                frompid, "Image", chunk, ctx)[True]
+        return self._processImagesInChunks(
+            call, imageIds, chunkSize, workers, progress, cancel)
+
+    def resetDefaultsInSetInChunks(self, to_type, ids, chunkSize=500,
+                                   workers=4, progress=None, cancel=None):
+        """
+        Resets the rendering settings of the Images in the given
+        containers to their defaults in parallel chunks, see
+        :meth:`applySettingsToSetInChunks`.
+
+        :return:    Dict of {imageId: True or False} for the processed
+                    Images
+        """
+        def call(rsettings, chunk, ctx):
+            return rsettings.resetDefaultsInSet("Image", chunk, ctx)
+        return self._processImagesInChunks(
+            call, self._getImageIdsInSet(to_type, ids), chunkSize, workers,
+            progress, cancel)
+
+    def resetMinMaxInSetInChunks(self, to_type, ids, chunkSize=500,
+                                 workers=4, progress=None, cancel=None):
+        """
+        Resets the channel windows of the Images in the given containers
+        to the channels' global minimum and maximum in parallel chunks, see
+        :meth:`applySettingsToSetInChunks`.
+
+        :return:    Dict of {imageId: True or False} for the processed
+                    Images
+        """
+        def call(rsettings, chunk, ctx):
+            return rsettings.resetMinMaxInSet("Image", chunk, ctx)
+        return self._processImagesInChunks(
+            call, self._getImageIdsInSet(to_type, ids), chunkSize, workers,
+            progress, cancel)
+
     def setChannelNames(self, data_type, ids, nameDict, channelCount=None):
         """
         Sets and saves new names for channels of specified Images.
@@ -4598,7 +4858,120 @@ class _BlitzGateway (object):
             search.close()
         return rv
 
-    def getThumbnailSet(self, image_ids, max_size=64):
+    def _getPixelsIdsForImages(self, image_ids, ctx):
+        """
+        Returns a dict of {pixelsId: imageId} for the given images.
+        """
+        p = omero.sys.ParametersI().addIds(image_ids)
+        sql = """select new map(
+                    i.id as im_id, p.id as pix_id
+                 )
+                 from Pixels as p join p.image as i
+                 where i.id in (:ids) """
+
+        img_pixel_ids = self.getQueryService().projection(sql, p, ctx)
+        rv = dict()
+        for e in img_pixel_ids:
+            e = unwrap(e)
+            rv[e[0]['pix_id']] = e[0]['im_id']
+        return rv
+
+    def getRenderingSettingsVersions(self, pixels_ids, ctx=None):
+        """
+        Returns the version of the rendering settings which thumbnails of
+        each of the given pixels sets are rendered with for the current
+        user, with a single query: those of the user if any, otherwise
+        those of the owner of the pixels set. The version is
+        "<rdef id>.<update event id>", or None if there are neither, in
+        which case the settings used by the server can't be known.
+
+        :param pixels_ids:  A list of pixels ids
+        :return:            Dict of {pixelsId: version}
+        """
+        if ctx is None:
+            ctx = self.SERVICE_OPTS
+        rv = dict((long(pid), None) for pid in pixels_ids)
+        if not rv:
+            return rv
+        userId = self.getUserId()
+        p = omero.sys.ParametersI().addIds(list(rv))
+        p.addId(userId)
+        sql = """select rdef.pixels.id, rdef.id,
+                        rdef.details.updateEvent.id, rdef.details.owner.id
+                 from RenderingDef as rdef
+                 where rdef.pixels.id in (:ids)
+                 and (rdef.details.owner.id = :id
+                      or rdef.details.owner.id =
+                         rdef.pixels.details.owner.id)"""
+        owners = dict()
+        for row in self.getQueryService().projection(sql, p, ctx):
+            pid, rdefId, eventId, ownerId = [r.val for r in row]
+            version = "%s.%s" % (rdefId, eventId)
+            if ownerId == userId:
+                rv[pid] = version
+            else:
+                owners[pid] = version
+        for (pid, version) in owners.items():
+            if rv[pid] is None:
+                rv[pid] = version
+        return rv
+
+    def _getThumbnailCacheScope(self):
+        """
+        Returns the scope of the thumbnails of this connection in the
+        thumbnail cache: its server and user.
+        """
+        return "%s-%s" % (self.getServerKey(), self.getUserId())
+
+    def _getCachedThumbnails(self, pixelsToImage, max_size, ctx):
+        """
+        Looks the thumbnails up in the thumbnail cache, if there is one,
+        after validating all of them with
+        :meth:`getRenderingSettingsVersions`.
+
+        :return:    Tuple of ({image_id: jpeg} found in the cache,
+                    [pixels ids] to request, {pixelsId: version} or None)
+        """
+        cache = self._thumbnailCache
+        if cache is None:
+            return dict(), list(pixelsToImage), None
+        versions = self.getRenderingSettingsVersions(list(pixelsToImage), ctx)
+        scope = self._getThumbnailCacheScope()
+        found = dict()
+        missing = []
+        for (pix, image_id) in pixelsToImage.items():
+            thumb = None
+            if versions[pix] is not None:
+                thumb = cache.get(pix, max_size, versions[pix], scope)
+            if thumb is None:
+                missing.append(pix)
+            else:
+                found[image_id] = thumb
+        return found, missing, versions
+
+    def _putCachedThumbnails(self, thumbs, max_size, versions, ctx=None):
+        """
+        Stores thumbnails fetched after :meth:`_getCachedThumbnails`. The
+        rendering settings which the server created when rendering pixels
+        sets that had none for the user or owner before are looked up
+        with a single query for all of them.
+
+        :param thumbs:      Dict of {pixelsId: jpeg}
+        """
+        if versions is None:
+            return
+        unknown = [pid for (pid, thumb) in thumbs.items()
+                   if thumb and versions[pid] is None]
+        if unknown:
+            versions.update(self.getRenderingSettingsVersions(unknown, ctx))
+        scope = self._getThumbnailCacheScope()
+        for (pid, thumb) in thumbs.items():
+            if thumb and versions[pid] is not None:
+                self._thumbnailCache.put(
+                    pid, max_size, versions[pid], thumb, scope)
+
+    def getThumbnailSet(self, image_ids, max_size=64, callback=None,
+                        workers=4):
         """
         Retrieves a number of thumbnails for image sets. If the Thumbnails
         exist in the on-disk cache they will be returned directly,
@@ -4610,34 +4983,41 @@ class _BlitzGateway (object):
                             to calculate the size for the smaller side
                             in order to keep the aspect ratio of
                             the original image.
+                            Thumbnails found in the cache set with
+                            :meth:`setThumbnailCache` aren't requested.
+        :param callback:    Optional callable callback(image_id, jpeg).
+                            If given, the thumbnails are fetched as with
+                            :meth:`streamThumbnailSet` and passed to it as
+                            soon as each one arrives.
+        :param workers:     Number of thumbnail stores used with callback
         :return:            dictionary of strings holding a rendered JPEG
                             of the thumbnails.
         """
+        if callback is not None:
+            _resp = dict()
+            for (image_id, thumb) in self.streamThumbnailSet(
+                    image_ids, max_size, workers=workers):
+                _resp[image_id] = thumb
+                callback(image_id, thumb)
+            return _resp
+
         tb = None
         _resp = dict()
         try:
             ctx = self.SERVICE_OPTS.copy()
             if ctx.getOmeroGroup() is None:
                 ctx.setOmeroGroup(-1)
-            tb = self.createThumbnailStore()
-            p = omero.sys.ParametersI().addIds(image_ids)
-            sql = """select new map(
-                        i.id as im_id, p.id as pix_id
-                     )
-                     from Pixels as p join p.image as i
-                     where i.id in (:ids) """
-
-            img_pixel_ids = self.getQueryService().projection(
-                sql, p, ctx)
-            _temp = dict()
-            for e in img_pixel_ids:
-                e = unwrap(e)
-                _temp[e[0]['pix_id']] = e[0]['im_id']
-
-            thumbs_map = tb.getThumbnailByLongestSideSet(
-                rint(max_size), list(_temp), ctx)
-            for (pix, thumb) in thumbs_map.items():
-                _resp[_temp[pix]] = thumb
+            _temp = self._getPixelsIdsForImages(image_ids, ctx)
+            cached, pixels_ids, versions = self._getCachedThumbnails(
+                _temp, max_size, ctx)
+            _resp.update(cached)
+            if pixels_ids:
+                tb = self.createThumbnailStore()
+                thumbs_map = tb.getThumbnailByLongestSideSet(
+                    rint(max_size), pixels_ids, ctx)
+                for (pix, thumb) in thumbs_map.items():
+                    _resp[_temp[pix]] = thumb
+                self._putCachedThumbnails(thumbs_map, max_size, versions, ctx)
         except Exception:
             logger.error(traceback.format_exc())
         finally:  # pragma: no cover
@@ -4645,6 +5025,188 @@ class _BlitzGateway (object):
                 tb.close()
         return _resp
 
+    def streamThumbnailSet(self, image_ids, max_size=64, chunkSize=16,
+                           workers=4):
+        """
+        Returns generator of (image_id, jpeg) for the thumbnails of the
+        given images, like :meth:`getThumbnailSet`, but yielding each one
+        as soon as it is available rather than once all have been rendered.
+        The images are split into chunks which are requested in parallel
+        over several thumbnail stores, and chunks are yielded in the order
+        in which they complete, so a grid of thumbnails can be filled in
+        while the slowest ones are still being rendered. Thumbnails which
+        can't be rendered are left out. Thumbnails found in the cache set
+        with :meth:`setThumbnailCache` are yielded first.
+
+        :param image_ids:   A list of image ids
+        :param max_size:    Longest side of the thumbnails
+        :param chunkSize:   Number of thumbnails requested per call
+        :param workers:     Number of thumbnail stores used in parallel
+        """
+        import threading
+        from Queue import Queue, Empty
+
+        ctx = self.SERVICE_OPTS.copy()
+        if ctx.getOmeroGroup() is None:
+            ctx.setOmeroGroup(-1)
+        pixelsToImage = self._getPixelsIdsForImages(image_ids, ctx)
+        cached, pixelsIds, versions = self._getCachedThumbnails(
+            pixelsToImage, max_size, ctx)
+        for (image_id, thumb) in cached.items():
+            yield image_id, thumb
+        pending = Queue()
+        chunkCount = 0
+        for i in range(0, len(pixelsIds), chunkSize):
+            pending.put(pixelsIds[i:i + chunkSize])
+            chunkCount += 1
+        results = Queue()
+        stop = threading.Event()
+
+        def work():
+            # Every chunk taken from pending results in exactly one put,
+            # even if the store can't be created, so the consumer below
+            # never waits for a chunk nobody will deliver.
+            tb = None
+            try:
+                tb = self.createThumbnailStore().clone()
+            except Exception:
+                logger.error("Failed to create thumbnail store",
+                             exc_info=True)
+            try:
+                while not stop.is_set():
+                    try:
+                        chunk = pending.get_nowait()
+                    except Empty:
+                        return
+                    thumbs = dict()
+                    try:
+                        if tb is not None:
+                            thumbs = tb.getThumbnailByLongestSideSet(
+                                rint(max_size), chunk, ctx)
+                    except Exception:
+                        logger.error("Failed to get thumbnails of pixels "
+                                     "%s", chunk, exc_info=True)
+                    results.put(thumbs)
+            finally:
+                if tb is not None:
+                    try:
+                        tb.close()
+                    except Exception:
+                        logger.error("Failed to close thumbnail store",
+                                     exc_info=True)
+
+        threads = []
+        for i in range(min(workers, chunkCount)):
+            thread = threading.Thread(
+                target=work, name="streamThumbnailSet-%s" % i)
+            thread.daemon = True
+            thread.start()
+            threads.append(thread)
+        # Thumbnails of pixels sets without rendering settings before are
+        # only cached once all have arrived, to look them up in one query
+        unversioned = dict()
+        try:
+            for i in range(chunkCount):
+                for (pix, thumb) in results.get().items():
+                    if versions is not None and versions[pix] is None:
+                        unversioned[pix] = thumb
+                    else:
+                        self._putCachedThumbnails(
+                            {pix: thumb}, max_size, versions, ctx)
+                    yield pixelsToImage[pix], thumb
+            self._putCachedThumbnails(unversioned, max_size, versions, ctx)
+        finally:
+            stop.set()
+            for thread in threads:
+                thread.join()
+
+    # Number of container atlases kept by getContainerThumbnailAtlas
+    THUMBNAIL_ATLAS_CACHE_SIZE = 16
+
+    def getThumbnailAtlas(self, image_ids, max_size=64, columns=None,
+                          format="jpeg", workers=4):
+        """
+        Packs the thumbnails of the given images into a single atlas image,
+        so a grid of thumbnails can be transferred and drawn as one sprite.
+        The thumbnails are fetched in parallel with
+        :meth:`streamThumbnailSet` and laid out left to right, top to
+        bottom, in the order of image_ids, each in a max_size square cell.
+        Images without a thumbnail are left out of the atlas.
+
+        :param image_ids:   A list of image ids
+        :param max_size:    Longest side of the thumbnails, i.e. cell size
+        :param columns:     Number of cells per row. Default is the
+                            square root of the number of thumbnails.
+        :param format:      Format of the atlas, 'jpeg' or 'png'
+        :param workers:     Number of thumbnail stores used in parallel
+        :return:            Tuple of (atlas data, index) where index is
+                            a dict of {image_id: (x, y, width, height)},
+                            or (None, {}) if there are no thumbnails.
+        """
+        thumbs = dict(self.streamThumbnailSet(
+            image_ids, max_size, workers=workers))
+        ids = []
+        for image_id in image_ids:
+            image_id = long(image_id)
+            if image_id in thumbs and image_id not in ids:
+                ids.append(image_id)
+        if not ids:
+            return None, dict()
+        if not columns:
+            columns = int(math.ceil(math.sqrt(len(ids))))
+        columns = min(columns, len(ids))
+        rows = (len(ids) + columns - 1) / columns
+        atlas = Image.new(
+            "RGB", (columns * max_size, rows * max_size), (255, 255, 255))
+        index = dict()
+        for (n, image_id) in enumerate(ids):
+            thumb = Image.open(StringIO(thumbs[image_id]))
+            x = (n % columns) * max_size
+            y = (n / columns) * max_size
+            atlas.paste(thumb, (x, y))
+            index[image_id] = (x, y, thumb.size[0], thumb.size[1])
+        rv = StringIO()
+        if format.lower() == "png":
+            atlas.save(rv, "PNG")
+        else:
+            atlas.save(rv, "JPEG", quality=90)
+        return rv.getvalue(), index
+
+    def getContainerThumbnailAtlas(self, obj_type, obj_id, max_size=64,
+                                   columns=None, format="jpeg", workers=4):
+        """
+        Returns the atlas of the thumbnails of all the images in a
+        container, see :meth:`getThumbnailAtlas`. Atlases are kept per
+        container and are reused for as long as the container holds the
+        same images and none of their rendering settings has changed,
+        which is checked with a couple of queries.
+
+        :param obj_type:    'Dataset', 'Project', 'Plate', 'Screen'
+                            or 'PlateAcquisition'
+        :param obj_id:      ID of the container
+        :return:            Tuple of (atlas data, index)
+        """
+        ctx = self.SERVICE_OPTS.copy()
+        if ctx.getOmeroGroup() is None:
+            ctx.setOmeroGroup(-1)
+        image_ids = self._getImageIdsInSet(obj_type, [obj_id])
+        pixelsToImage = self._getPixelsIdsForImages(image_ids, ctx)
+        versions = self.getRenderingSettingsVersions(
+            list(pixelsToImage), ctx)
+        signature = tuple(sorted(versions.items()))
+        key = (obj_type.title(), long(obj_id), max_size, columns,
+               format.lower())
+        cached = self._thumbnailAtlases.pop(key, None)
+        if cached is not None and cached[0] == signature:
+            self._thumbnailAtlases[key] = cached
+            return cached[1], dict(cached[2])
+        data, index = self.getThumbnailAtlas(
+            image_ids, max_size, columns, format, workers)
+        self._thumbnailAtlases[key] = (signature, data, index)
+        while len(self._thumbnailAtlases) > self.THUMBNAIL_ATLAS_CACHE_SIZE:
+            self._thumbnailAtlases.popitem(last=False)
+        return data, dict(index)
+
 
 class OmeroGatewaySafeCallWrapper(object):  # pragma: no cover
     """
@@ -4762,6 +5324,10 @@ class ProxyObjectWrapper (object):
         self._func_str = func_str
         self._cast_to = cast_to
         self._service_name = service_name
+        self._compress = False
+        # String the stateful service was registered with, which is that
+        # of the uncompressed proxy
+        self._registered = None
         self._resyncConn(conn)
         self._tainted = False
 
@@ -4774,8 +5340,10 @@ class ProxyObjectWrapper (object):
         :rtype:     :class:`ProxyObjectWrapper`
         """
 
-        return ProxyObjectWrapper(
+        rv = ProxyObjectWrapper(
             self._conn, self._func_str, self._cast_to, self._service_name)
+        rv.setCompress(self._compress)
+        return rv
 
     def _connect(self, forcejoin=False):  # pragma: no cover
         """
@@ -4805,6 +5373,18 @@ class ProxyObjectWrapper (object):
         logger.debug("proxy_connect: d")
         return True
 
+    def setCompress(self, compress=True):
+        """
+        Enables or disables Ice protocol compression for the calls made
+        through this wrapper, including on any service re-created after a
+        reconnect. The data passed and returned is unchanged.
+
+        :param compress:    True to compress requests and replies
+        """
+        self._compress = compress
+        if self._obj is not None:
+            self._obj = self._obj.ice_compress(compress)
+
     def taint(self):
         """ Sets the tainted flag to True """
         self._tainted = True
@@ -4821,9 +5401,11 @@ class ProxyObjectWrapper (object):
 
         if self._obj and isinstance(
                 self._obj, omero.api.StatefulServiceInterfacePrx):
-            self._conn._unregister_service(str(self._obj))
+            self._conn._unregister_service(
+                self._registered or str(self._obj))
             self._obj.close(*args, **kwargs)
         self._obj = None
+        self._registered = None
 
     def _resyncConn(self, conn):
         """
@@ -4839,14 +5421,17 @@ class ProxyObjectWrapper (object):
 
         def cf():
             if self._func_str is None:
-                return self._cast_to(
+                obj = self._cast_to(
                     self._conn.c.sf.getByName(self._service_name)
                 )
             else:
                 obj = getattr(self._conn.c.sf, self._func_str)()
                 if isinstance(obj, omero.api.StatefulServiceInterfacePrx):
+                    self._registered = str(obj)
                     conn._register_service(str(obj), traceback.extract_stack())
-                return obj
+            if self._compress:
+                obj = obj.ice_compress(True)
+            return obj
         self._create_func = cf
         if self._obj is not None:
             try:
@@ -4854,6 +5439,8 @@ class ProxyObjectWrapper (object):
                              (self._func_str or self._service_name))
                 obj = conn.c.ic.stringToProxy(str(self._obj))
                 self._obj = self._obj.checkedCast(obj)
+                if self._compress:
+                    self._obj = self._obj.ice_compress(True)
             except Ice.ObjectNotExistException:
                 self._obj = None
 
@@ -7198,12 +7785,25 @@ class _PixelsWrapper (BlitzObjectWrapper):
     """
 
     OMERO_CLASS = 'Pixels'
+    _resolutionLevels = None
+    _updateEventId = None
 
-    def _prepareRawPixelsStore(self):
+    def _prepareRawPixelsStore(self, dedicated=False):
         """
         Creates RawPixelsStore and sets the id etc
+
+        :param dedicated:   If True, a new store is created rather than
+                            reusing the one cached on the connection, e.g.
+                            so that it can be used from another thread.
+                            A new store is also created if pixels
+                            compression is enabled, so that the shared
+                            store is left uncompressed for its other users.
         """
         ps = self._conn.createRawPixelsStore()
+        compress = self._conn.isPixelsCompression()
+        if dedicated or compress:
+            ps = ps.clone()
+            ps.setCompress(compress)
         ps.setPixelsId(self._obj.id.val, True, self._conn.SERVICE_OPTS)
         return ps
 
@@ -7217,6 +7817,54 @@ class _PixelsWrapper (BlitzObjectWrapper):
         """
         return BlitzObjectWrapper(self._conn, self._obj.getPixelsType())
 
+    def _getPixelsDtype(self):
+        """
+        Returns the numpy dtype describing the big-endian pixel values as
+        sent by the RawPixelsStore.
+        """
+        import numpy
+
+        pixelTypes = {PixelsTypeint8: 'i1',
+                      PixelsTypeuint8: 'u1',
+                      PixelsTypeint16: '>i2',
+                      PixelsTypeuint16: '>u2',
+                      PixelsTypeint32: '>i4',
+                      PixelsTypeuint32: '>u4',
+                      PixelsTypefloat: '>f4',
+                      PixelsTypedouble: '>f8'}
+        return numpy.dtype(pixelTypes[self.getPixelsType().value])
+
+    def _unpackPixels(self, rawPixels, shape, out=None, copy=True):
+        """
+        Converts the big-endian bytes returned by the RawPixelsStore into a
+        numpy array of the given shape.
+
+        :param rawPixels:   String of bytes as returned by the store
+        :param shape:       Tuple of dimension sizes, slowest varying first
+        :param out:         Optional array of the given shape to convert the
+                            values into instead of allocating a new one
+        :param copy:        If False, return a read-only big-endian view on
+                            rawPixels rather than a native-endian copy
+        :return:            numpy array of this pixels' type
+        """
+        import numpy
+
+        view = numpy.frombuffer(
+            rawPixels, dtype=self._getPixelsDtype()).reshape(shape)
+        return self._convertPixels(view, out, copy)
+
+    def _convertPixels(self, view, out=None, copy=True):
+        """
+        Returns the values of a big-endian view as requested, see
+        :meth:`_unpackPixels`.
+        """
+        if out is not None:
+            out[...] = view
+            return out
+        if not copy:
+            return view
+        return view.astype(view.dtype.newbyteorder('='))
+
     def copyPlaneInfo(self, theC=None, theT=None, theZ=None):
         """
         Loads plane infos and returns sequence of omero.model.PlaneInfo objects
@@ -7256,77 +7904,149 @@ class _PixelsWrapper (BlitzObjectWrapper):
         for pi in result:
             yield PlaneInfoWrapper(self._conn, pi)
 
-    def getPlanes(self, zctList):
+    def getPlanes(self, zctList, out=None, copy=True, mirror=None):
         """
         Returns generator of numpy 2D planes from this set of pixels for a
         list of Z, C, T indexes.
 
         :param zctList:     A list of indexes: [(z,c,t), ]
+        :param out:         See :meth:`getTiles`
+        :param copy:        See :meth:`getTiles`
+        :param mirror:      See :meth:`getTiles`
         """
 
         zctTileList = []
         for zct in zctList:
             z, c, t = zct
             zctTileList.append((z, c, t, None))
-        return self.getTiles(zctTileList)
+        return self.getTiles(zctTileList, out=out, copy=copy, mirror=mirror)
 
-    def getPlane(self, theZ=0, theC=0, theT=0):
+    def getPlane(self, theZ=0, theC=0, theT=0, out=None, mirror=None):
         """
         Gets the specified plane as a 2D numpy array by calling
         :meth:`getPlanes`
         If a range of planes are required, :meth:`getPlanes` is approximately
         30% faster.
+
+        :param out:     Optional 2D array (sizeY, sizeX) to fill in place
+        :param mirror:  See :meth:`getTiles`
         """
-        planeList = list(self.getPlanes([(theZ, theC, theT)]))
+        planeList = list(self.getPlanes(
+            [(theZ, theC, theT)], out=out, mirror=mirror))
         return planeList[0]
 
-    def getTiles(self, zctTileList):
+    def _getUpdateEventId(self):
+        """
+        Returns the id of the update event of the wrapped Pixels, which
+        changes whenever the pixel data is modified. If the wrapped Pixels
+        don't carry it, it is loaded from the server once. None if unknown.
+        """
+        try:
+            return self._obj.details.updateEvent.id.val
+        except AttributeError:
+            pass
+        if self._updateEventId is None:
+            params = omero.sys.ParametersI()
+            params.addId(self.getId())
+            ctx = self._conn.SERVICE_OPTS.copy()
+            ctx.setOmeroGroup(-1)
+            rows = self._conn.getQueryService().projection(
+                "select p.details.updateEvent.id from Pixels p "
+                "where p.id = :id", params, ctx)
+            if rows and rows[0][0] is not None:
+                self._updateEventId = rows[0][0].val
+        return self._updateEventId
+
+    def getTiles(self, zctTileList, cache=None, out=None, copy=True,
+                 mirror=None, level=None):
         """
         Returns generator of numpy 2D planes from this set of pixels for a
         list of (Z, C, T, tile) where tile is (x, y, width, height) or None if
         you want the whole plane.
 
+        By default each plane is a new native-endian array. To avoid the
+        allocation, pass an array (or a view on a region of a larger array)
+        as out: every plane is then converted into it and out itself is
+        yielded, so it must be consumed before the next iteration. With
+        copy=False read-only big-endian views on the received bytes are
+        yielded instead, without any conversion at all.
+
         :param zctrList:     A list of indexes: [(z,c,t, region), ]
+        :param cache:        Optional :class:`omero.gateway.utils.TileCache`
+                             consulted before, and filled after, each read
+                             from the server.
+        :param out:          Optional 2D array of the tiles' shape to fill
+        :param copy:         If False, yield views rather than copies
+        :param mirror:       Optional :class:`omero.gateway.utils.PixelsMirror`
+                             Whole planes are downloaded into it on first
+                             access and all tiles are then read from it.
+                             Not used if the update event of the pixels,
+                             which versions the mirrored data, is unknown.
+        :param level:        Resolution level to read from, as indexed in
+                             :meth:`getResolutionLevels`. Tiles and planes
+                             are in the coordinates of that level. Default
+                             is full resolution.
         """
 
-        import numpy
-        from struct import unpack
-
-        pixelTypes = {PixelsTypeint8: ['b', numpy.int8],
-                      PixelsTypeuint8: ['B', numpy.uint8],
-                      PixelsTypeint16: ['h', numpy.int16],
-                      PixelsTypeuint16: ['H', numpy.uint16],
-                      PixelsTypeint32: ['i', numpy.int32],
-                      PixelsTypeuint32: ['I', numpy.uint32],
-                      PixelsTypefloat: ['f', numpy.float32],
-                      PixelsTypedouble: ['d', numpy.float64]}
         rawPixelsStore = None
         sizeX = self.sizeX
         sizeY = self.sizeY
-        pixelType = self.getPixelsType().value
-        numpyType = pixelTypes[pixelType][1]
+        if level:
+            if mirror is not None:
+                raise ValueError("mirror only supports full resolution")
+            sizeX, sizeY = self.getResolutionLevels()[level][:2]
+        version = None
+        if cache is not None or mirror is not None:
+            version = self._getUpdateEventId()
+        mirrored = None
+        if mirror is not None and version is None:
+            logger.debug("No update event for pixels %s, not mirrored",
+                         self.getId())
+        elif mirror is not None:
+            mirrored = mirror.open(
+                self.getId(), version,
+                (self.sizeT, self.sizeC, self.sizeZ, sizeY, sizeX),
+                self._getPixelsDtype(), self._conn.getServerKey())
         exc = None
         try:
-            rawPixelsStore = self._prepareRawPixelsStore()
             for zctTile in zctTileList:
                 z, c, t, tile = zctTile
                 if tile is None:
-                    rawPlane = rawPixelsStore.getPlane(z, c, t)
-                    planeY = sizeY
-                    planeX = sizeX
+                    x, y, planeX, planeY = 0, 0, sizeX, sizeY
                 else:
-                    x, y, width, height = tile
-                    rawPlane = rawPixelsStore.getTile(
-                        z, c, t, x, y, width, height)
-                    planeY = height
-                    planeX = width
-                # +str(sizeX*sizeY)+pythonTypes[pixelType]
-                convertType = '>%d%s' % (
-                    (planeY*planeX), pixelTypes[pixelType][0])
-                convertedPlane = unpack(convertType, rawPlane)
-                remappedPlane = numpy.array(convertedPlane, numpyType)
-                remappedPlane.resize(planeY, planeX)
-                yield remappedPlane
+                    x, y, planeX, planeY = tile
+                if mirrored is not None:
+                    plane = mirrored.getPlane(z, c, t)
+                    if plane is None:
+                        if rawPixelsStore is None:
+                            rawPixelsStore = self._prepareRawPixelsStore()
+                        plane = mirrored.putPlane(
+                            z, c, t, rawPixelsStore.getPlane(z, c, t))
+                    yield self._convertPixels(
+                        plane[y:y + planeY, x:x + planeX], out=out,
+                        copy=copy)
+                    continue
+                rawPlane = None
+                if cache is not None:
+                    key = (self.getId(), z, c, t, x, y, planeX, planeY)
+                    if level:
+                        key += (level,)
+                    rawPlane = cache.get(key, version)
+                if rawPlane is None:
+                    if rawPixelsStore is None:
+                        rawPixelsStore = self._prepareRawPixelsStore()
+                        if level:
+                            rawPixelsStore.setResolutionLevel(
+                                len(self.getResolutionLevels()) - 1 - level)
+                    if tile is None and not level:
+                        rawPlane = rawPixelsStore.getPlane(z, c, t)
+                    else:
+                        rawPlane = rawPixelsStore.getTile(
+                            z, c, t, x, y, planeX, planeY)
+                    if cache is not None:
+                        cache.put(key, rawPlane, version)
+                yield self._unpackPixels(
+                    rawPlane, (planeY, planeX), out=out, copy=copy)
         except Exception, e:
             logger.error(
                 "Failed to getPlane() or getTile() from rawPixelsStore",
@@ -7342,16 +8062,412 @@ class _PixelsWrapper (BlitzObjectWrapper):
         if exc is not None:
             raise exc
 
-    def getTile(self, theZ=0, theC=0, theT=0, tile=None):
+    def getTile(self, theZ=0, theC=0, theT=0, tile=None, cache=None,
+                out=None, mirror=None, level=None):
         """
         Gets the specified plane as a 2D numpy array by calling
         :meth:`getTiles`
         If a range of tile are required, :meth:`getTiles` is approximately 30%
         faster.
+
+        :param out:     Optional 2D array (height, width) to fill in place,
+                        e.g. a row or region of a larger array
+        :param mirror:  See :meth:`getTiles`
+        :param level:   See :meth:`getTiles`
         """
-        tileList = list(self.getTiles([(theZ, theC, theT, tile)]))
+        tileList = list(self.getTiles(
+            [(theZ, theC, theT, tile)], cache, out=out, mirror=mirror,
+            level=level))
         return tileList[0]
 
+    def getResolutionLevels(self):
+        """
+        Returns the resolution levels available for this set of pixels as
+        a list of (sizeX, sizeY, tileWidth, tileHeight) tuples. Index 0 is
+        full resolution and each further level is smaller. Images without
+        a pyramid have a single level.
+        """
+        if self._resolutionLevels is None:
+            rawPixelsStore = self._prepareRawPixelsStore()
+            try:
+                count = rawPixelsStore.getResolutionLevels()
+                descriptions = rawPixelsStore.getResolutionDescriptions()
+                levels = []
+                for i, description in enumerate(descriptions):
+                    # The store numbers its levels from the smallest
+                    rawPixelsStore.setResolutionLevel(count - 1 - i)
+                    tileWidth, tileHeight = rawPixelsStore.getTileSize()
+                    levels.append((description.sizeX, description.sizeY,
+                                   tileWidth, tileHeight))
+                self._resolutionLevels = levels
+            finally:
+                rawPixelsStore.close()
+        return self._resolutionLevels
+
+    def getResolutionLevelForSize(self, width, height):
+        """
+        Returns the index of the smallest resolution level which is at
+        least width x height, or 0 (full resolution) if none is smaller.
+        The result can be passed as level to :meth:`getTiles`.
+        """
+        levels = self.getResolutionLevels()
+        for level in range(len(levels) - 1, 0, -1):
+            sizeX, sizeY = levels[level][:2]
+            if sizeX >= width and sizeY >= height:
+                return level
+        return 0
+
+    def prefetchTiles(self, zctTileList, stores=2, lookAhead=4):
+        """
+        Returns generator of numpy 2D planes like :meth:`getTiles` but keeps
+        up to lookAhead requests in flight, spread over the given number
+        of RawPixelsStore instances, each used from its own thread. The
+        tiles are still yielded in the order of zctTileList. This hides the
+        latency of the individual round-trips when iterating over many
+        planes.
+
+        :param zctTileList: A list of indexes: [(z,c,t, region), ]
+                            where region is (x, y, width, height) or None
+                            for the whole plane
+        :param stores:      Number of RawPixelsStores to read with
+        :param lookAhead:   Maximum number of tiles loaded ahead of the
+                            consumer
+        """
+        from omero.util.concurrency import OrderedPrefetcher
+
+        sizeX = self.sizeX
+        sizeY = self.sizeY
+
+        def load(rawPixelsStore, zctTile):
+            z, c, t, tile = zctTile
+            if tile is None:
+                return (rawPixelsStore.getPlane(z, c, t), (sizeY, sizeX))
+            x, y, width, height = tile
+            return (rawPixelsStore.getTile(z, c, t, x, y, width, height),
+                    (height, width))
+
+        def teardown(rawPixelsStore):
+            rawPixelsStore.close()
+
+        prefetcher = OrderedPrefetcher(
+            zctTileList, load, workers=stores, look_ahead=lookAhead,
+            setup=lambda: self._prepareRawPixelsStore(dedicated=True),
+            teardown=teardown)
+        for rawPlane, shape in prefetcher:
+            yield self._unpackPixels(rawPlane, shape)
+
+    def prefetchPlanes(self, zctList, stores=2, lookAhead=4):
+        """
+        Returns generator of numpy 2D planes for a list of Z, C, T indexes
+        by calling :meth:`prefetchTiles`.
+
+        :param zctList:     A list of indexes: [(z,c,t), ]
+        :param stores:      Number of RawPixelsStores to read with
+        :param lookAhead:   Maximum number of planes loaded ahead of the
+                            consumer
+        """
+        zctTileList = [(z, c, t, None) for z, c, t in zctList]
+        return self.prefetchTiles(zctTileList, stores, lookAhead)
+
+    def getTileGrid(self, tileWidth=None, tileHeight=None, zctList=None):
+        """
+        Returns a list of (Z, C, T, tile) covering each plane in zctList
+        with tiles of at most tileWidth x tileHeight, as accepted by
+        :meth:`getTiles`, :meth:`prefetchTiles` and :meth:`mapTiles`.
+        Within a plane the tiles are ordered by row.
+
+        :param tileWidth:   Maximum tile width. Defaults to the tile size
+                            preferred by the server.
+        :param tileHeight:  Maximum tile height. Defaults as tileWidth.
+        :param zctList:     A list of indexes: [(z,c,t), ]. Default: every
+                            plane, ordered by T, then C, then Z.
+        """
+        if tileWidth is None or tileHeight is None:
+            preferredWidth, preferredHeight = self.getResolutionLevels()[0][2:]
+            if tileWidth is None:
+                tileWidth = preferredWidth
+            if tileHeight is None:
+                tileHeight = preferredHeight
+        if zctList is None:
+            zctList = [(z, c, t) for t in range(self.sizeT)
+                       for c in range(self.sizeC)
+                       for z in range(self.sizeZ)]
+        sizeX = self.sizeX
+        sizeY = self.sizeY
+        grid = []
+        for z, c, t in zctList:
+            for y in range(0, sizeY, tileHeight):
+                for x in range(0, sizeX, tileWidth):
+                    grid.append((z, c, t, (x, y, min(tileWidth, sizeX - x),
+                                           min(tileHeight, sizeY - y))))
+        return grid
+
+    def mapTiles(self, function, zctTileList=None, workers=4,
+                 lookAhead=None):
+        """
+        Applies function to every tile in zctTileList in parallel and
+        returns a generator of the results in the order of zctTileList.
+
+        Each of the worker threads reads its tiles lazily over its own
+        RawPixelsStore and calls function(zctTile, array) on the 2D numpy
+        array of each one, so both the transfers and any work which
+        releases the GIL (as most numpy operations do) use several cores.
+
+        :param function:    Callable taking ((z,c,t, region), array)
+        :param zctTileList: A list of indexes: [(z,c,t, region), ].
+                            Default: :meth:`getTileGrid`
+        :param workers:     Number of threads and RawPixelsStores
+        :param lookAhead:   Maximum number of results computed ahead of the
+                            consumer. Default: twice the workers.
+        """
+        from omero.util.concurrency import OrderedPrefetcher
+
+        if zctTileList is None:
+            zctTileList = self.getTileGrid()
+        if lookAhead is None:
+            lookAhead = 2 * workers
+        sizeX = self.sizeX
+        sizeY = self.sizeY
+
+        def load(rawPixelsStore, zctTile):
+            z, c, t, tile = zctTile
+            if tile is None:
+                tile = (0, 0, sizeX, sizeY)
+            x, y, width, height = tile
+            rawTile = rawPixelsStore.getTile(z, c, t, x, y, width, height)
+            return function(
+                zctTile, self._unpackPixels(rawTile, (height, width)))
+
+        def teardown(rawPixelsStore):
+            rawPixelsStore.close()
+
+        return iter(OrderedPrefetcher(
+            zctTileList, load, workers=workers, look_ahead=lookAhead,
+            setup=lambda: self._prepareRawPixelsStore(dedicated=True),
+            teardown=teardown))
+
+    def getStack(self, theC=0, theT=0, maxChunkBytes=None):
+        """
+        Returns generator of numpy 3D arrays (z, y, x) which together make up
+        the Z-stack for the given channel and timepoint. Rather than
+        transferring the whole stack in one call, consecutive Z-sections are
+        grouped into chunks of at most maxChunkBytes (but always at least
+        one plane) and yielded in Z order as soon as each one arrives.
+
+        :param theC:            Channel index
+        :param theT:            Timepoint index
+        :param maxChunkBytes:   Upper bound on the size of each transfer.
+                                Defaults to the client's block size.
+        """
+        return self.getHypercube(
+            (0, 0, 0, theC, theT),
+            (self.sizeX, self.sizeY, self.sizeZ, 1, 1),
+            maxChunkBytes=maxChunkBytes)
+
+    def getHypercube(self, offset, size, step=None, maxChunkBytes=None):
+        """
+        Returns generator of numpy 3D arrays (z, y, x) covering the
+        hypercube described by offset, size and step, each given in XYZCT
+        order as for RawPixelsStore.getHypercube(). The hypercube is read in
+        chunks of consecutive Z-sections no larger than maxChunkBytes (but
+        always at least one plane). Chunks are yielded ordered by T, then C,
+        then Z so that processing can start before the whole hypercube has
+        been transferred.
+
+        :param offset:          Start index in each dimension: [x,y,z,c,t]
+        :param size:            Extent in each dimension: [x,y,z,c,t]
+        :param step:            Sampling step in each dimension. Default 1.
+        :param maxChunkBytes:   Upper bound on the size of each transfer.
+                                Defaults to the client's block size.
+        """
+        if step is None:
+            step = (1, 1, 1, 1, 1)
+        if maxChunkBytes is None:
+            maxChunkBytes = self._conn.c.getDefaultBlockSize()
+        offX, offY, offZ, offC, offT = offset
+        stepX, stepY, stepZ, stepC, stepT = step
+
+        def count(extent, stride):
+            return (extent + stride - 1) / stride
+
+        countX = count(size[0], stepX)
+        countY = count(size[1], stepY)
+        countZ = count(size[2], stepZ)
+        bytesPerPlane = countX * countY * \
+            self.getPixelsType().getBitSize() / 8
+        zPerChunk = max(1, min(countZ, maxChunkBytes / bytesPerPlane))
+
+        rawPixelsStore = None
+        exc = None
+        try:
+            rawPixelsStore = self._prepareRawPixelsStore()
+            for t in range(offT, offT + size[4], stepT):
+                for c in range(offC, offC + size[3], stepC):
+                    for first in range(0, countZ, zPerChunk):
+                        nz = min(zPerChunk, countZ - first)
+                        extentZ = min(nz * stepZ, size[2] - first * stepZ)
+                        rawCube = rawPixelsStore.getHypercube(
+                            [offX, offY, offZ + first * stepZ, c, t],
+                            [size[0], size[1], extentZ, 1, 1],
+                            [stepX, stepY, stepZ, 1, 1])
+                        yield self._unpackPixels(
+                            rawCube, (nz, countY, countX))
+        except Exception, e:
+            logger.error(
+                "Failed to getHypercube() from rawPixelsStore",
+                exc_info=True)
+            exc = e
+        try:
+            if rawPixelsStore is not None:
+                rawPixelsStore.close()
+        except Exception, e:
+            logger.error("Failed to close rawPixelsStore", exc_info=True)
+            if exc is None:
+                exc = e
+        if exc is not None:
+            raise exc
+
+    # Projections supported by projectStack, named as the keys of
+    # ImageWrapper.PROJECTIONS
+    PROJECTIONS = ('intmax', 'intmean', 'intsum', 'intmedian', 'intstd')
+
+    def _projectTile(self, rawPixelsStore, algorithm, c, t, zList, tile,
+                     out):
+        """
+        Projects the given Z-sections of one tile into out, reading them
+        one at a time except for the median, which needs them all.
+        """
+        import numpy
+
+        x, y, width, height = tile
+        region = out[y:y + height, x:x + width]
+
+        def read(z, into=None):
+            return self._unpackPixels(
+                rawPixelsStore.getTile(z, c, t, x, y, width, height),
+                (height, width), out=into)
+
+        if algorithm == 'intmedian':
+            dtype = self._getPixelsDtype().newbyteorder('=')
+            column = numpy.empty((len(zList), height, width), dtype=dtype)
+            for i, z in enumerate(zList):
+                read(z, column[i])
+            numpy.median(column, axis=0, out=region)
+        elif algorithm == 'intmax':
+            region[...] = read(zList[0])
+            for z in zList[1:]:
+                numpy.maximum(region, read(z), out=region)
+        elif algorithm == 'intstd':
+            # Welford's algorithm: running mean and sum of squared deltas
+            mean = numpy.zeros((height, width))
+            m2 = numpy.zeros((height, width))
+            for n, z in enumerate(zList, 1):
+                plane = read(z)
+                delta = plane - mean
+                mean += delta / n
+                m2 += delta * (plane - mean)
+            numpy.sqrt(m2 / len(zList), out=region)
+        else:
+            region[...] = 0
+            for z in zList:
+                region += read(z)
+            if algorithm == 'intmean':
+                region /= len(zList)
+
+    def _projectStack(self, rawPixelsStore, algorithm, c, t, zList,
+                      tileWidth, tileHeight, maxColumnBytes):
+        import numpy
+
+        if algorithm not in self.PROJECTIONS:
+            raise ValueError("Unsupported projection: %s" % algorithm)
+        if not zList:
+            raise ValueError("No Z-sections to project")
+        dtype = numpy.float64
+        if algorithm == 'intmax':
+            dtype = self._getPixelsDtype().newbyteorder('=')
+        elif algorithm == 'intmedian':
+            # Bound the memory taken by the Z-sections of each tile
+            bytesPerRow = len(zList) * tileWidth * \
+                self._getPixelsDtype().itemsize
+            tileHeight = max(1, min(tileHeight, maxColumnBytes / bytesPerRow))
+        out = numpy.empty((self.sizeY, self.sizeX), dtype=dtype)
+        for z, c, t, tile in self.getTileGrid(
+                tileWidth, tileHeight, [(zList[0], c, t)]):
+            self._projectTile(rawPixelsStore, algorithm, c, t, zList, tile,
+                              out)
+        return out
+
+    def projectStacks(self, algorithm, ctList=None, zStart=None, zEnd=None,
+                      stepping=1, tileWidth=None, tileHeight=None,
+                      workers=4, maxColumnBytes=64 * 1024 * 1024):
+        """
+        Returns generator of (c, t, projection) for the Z-stacks of the
+        given channels and timepoints, projected on the client. Each stack
+        is streamed tile by tile, so memory is bounded by the tile size
+        rather than by the stack size, and the stacks are projected in
+        parallel on a pool of worker threads, each with its own
+        RawPixelsStore. Results are yielded in the order of ctList.
+
+        :param algorithm:       'intmax', 'intmean', 'intsum' as the
+                                server's projections, 'intmedian' for the
+                                median or 'intstd' for the population
+                                standard deviation of each pixel
+        :param ctList:          A list of indexes: [(c,t), ]. Default:
+                                every stack, ordered by T, then C.
+        :param zStart:          First Z-section, default 0
+        :param zEnd:            Last Z-section (inclusive), default the last
+        :param stepping:        Use every stepping-th Z-section
+        :param tileWidth:       Width of the tiles read, default the tile
+                                size preferred by the server
+        :param tileHeight:      Height of the tiles read, as tileWidth
+        :param workers:         Number of threads and RawPixelsStores
+        :param maxColumnBytes:  Upper bound on the Z-sections of one tile
+                                held at once for 'intmedian', the only
+                                projection which needs them together. The
+                                tile height is reduced to fit.
+        :return:                2D numpy arrays of the pixel type for
+                                'intmax', of float64 otherwise
+        """
+        from omero.util.concurrency import OrderedPrefetcher
+
+        if ctList is None:
+            ctList = [(c, t) for t in range(self.sizeT)
+                      for c in range(self.sizeC)]
+        if zStart is None:
+            zStart = 0
+        if zEnd is None:
+            zEnd = self.sizeZ - 1
+        zList = range(zStart, zEnd + 1, stepping)
+        if tileWidth is None or tileHeight is None:
+            preferredWidth, preferredHeight = self.getResolutionLevels()[0][2:]
+            tileWidth = tileWidth or preferredWidth
+            tileHeight = tileHeight or preferredHeight
+
+        def load(rawPixelsStore, ct):
+            c, t = ct
+            return c, t, self._projectStack(
+                rawPixelsStore, algorithm, c, t, zList, tileWidth,
+                tileHeight, maxColumnBytes)
+
+        def teardown(rawPixelsStore):
+            rawPixelsStore.close()
+
+        return iter(OrderedPrefetcher(
+            ctList, load, workers=workers, look_ahead=workers,
+            setup=lambda: self._prepareRawPixelsStore(dedicated=True),
+            teardown=teardown))
+
+    def projectStack(self, algorithm, theC=0, theT=0, zStart=None,
+                     zEnd=None, stepping=1, tileWidth=None, tileHeight=None):
+        """
+        Returns the projection of a single Z-stack as a 2D numpy array.
+        See :meth:`projectStacks`.
+        """
+        for c, t, projection in self.projectStacks(
+                algorithm, [(theC, theT)], zStart, zEnd, stepping,
+                tileWidth, tileHeight, workers=1):
+            return projection
+
 PixelsWrapper = _PixelsWrapper
 
 
@@ -7754,6 +8870,42 @@ def assert_pixels(func):
     return wrapped
 
 
+# Identifies unsaved changes of rendering settings, see
+# _ImageWrapper._onRenderingSettingsChanged
+_renderingSettingsTokens = itertools.count(1)
+
+
+class _RenderingEngineWrapper (object):
+    """
+    Wraps the :class:`ProxyObjectWrapper` of an image's rendering engine
+    and tells the image about every call which changes the engine's
+    settings, whether it is made by a wrapper method, through
+    updateSettings or directly on ImageWrapper._re, so that the image's
+    rendered tile cache key is never left on old settings.
+    """
+
+    # Prefixes of the RenderingEngine methods which change what it renders
+    MUTATORS = ("set", "update", "reset", "add", "remove", "load",
+                "lookup")
+
+    def __init__(self, re, img):
+        self._proxy = re
+        self._img = img
+
+    def __getattr__(self, attr):
+        rv = getattr(self._proxy, attr)
+        name = attr
+        if name.startswith("begin_"):
+            name = name[len("begin_"):]
+        if not callable(rv) or not name.startswith(self.MUTATORS):
+            return rv
+
+        def wrapped(*args, **kwargs):
+            self._img._onRenderingEngineCall(name, args)
+            return rv(*args, **kwargs)
+        return wrapped
+
+
 class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
     """
     omero_model_ImageI class wrapper extends BlitzObjectWrapper.
@@ -7774,6 +8926,12 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
 
     _invertedAxis = False
 
+    # See _getRenderCacheKey
+    _renderingDefKey = None
+    _renderingSettings = None
+    _reResolutionLevel = None
+    _reCompressionLevel = None
+
     PROJECTIONS = {
         'normal': -1,
         'intmax': omero.constants.projection.ProjectionType.MAXIMUMINTENSITY,
@@ -7998,7 +9156,8 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
             if self._pd is None:
                 self._pd = omero.romio.PlaneDef(self.PLANEDEF)
             try:
-                self._re = self._prepareRE(rdid=rdid)
+                self._re = _RenderingEngineWrapper(
+                    self._prepareRE(rdid=rdid), self)
             except omero.ValidationException:
                 logger.debug('on _prepareRE()', exc_info=True)
                 self._closeRE()
@@ -8755,6 +9914,56 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
         finally:
             rp.close()
 
+    def getStackHistogram(self, channels, binCount, zRange=None,
+                          tRange=None, maxPlanes=None):
+        """
+        Get pixel intensity histogram over several planes for specified
+        channels, e.g. for auto-contrast over a whole time-lapse.
+
+        The per-plane histograms are all computed with the global min/max of
+        each channel, so that their bins line up, and are summed. All planes
+        are read through a single RawPixelsStore. If maxPlanes is given,
+        only that many (Z, T) positions evenly spread over the ranges are
+        used, which gives an approximate histogram much more quickly.
+
+        :param channels:        List of channel integers we want
+        :param binCount:        Number of bins in the histogram
+        :param zRange:          Inclusive (start, end) Z indexes.
+                                Default: all Z-sections
+        :param tRange:          Inclusive (start, end) T indexes.
+                                Default: all timepoints
+        :param maxPlanes:       Maximum number of (Z, T) planes to sample
+        :return:                Dict of channelIndex: integer list
+        """
+
+        if zRange is None:
+            zRange = (0, self.getSizeZ() - 1)
+        if tRange is None:
+            tRange = (0, self.getSizeT() - 1)
+        zts = [(z, t) for t in range(tRange[0], tRange[1] + 1)
+               for z in range(zRange[0], zRange[1] + 1)]
+        if maxPlanes is not None and 0 < maxPlanes < len(zts):
+            step = float(len(zts)) / maxPlanes
+            zts = [zts[int(i * step)] for i in range(maxPlanes)]
+
+        merged = dict((c, [0] * binCount) for c in channels)
+        pixels_id = self.getPixelsId()
+        rp = self._conn.createRawPixelsStore()
+        try:
+            rp.setPixelsId(pixels_id, True, self._conn.SERVICE_OPTS)
+            plane = omero.romio.PlaneDef(self.PLANEDEF)
+            for z, t in zts:
+                plane.z = long(z)
+                plane.t = long(t)
+                histogram = rp.getHistogram(channels, binCount, True, plane)
+                for c, counts in histogram.items():
+                    total = merged[c]
+                    for i, count in enumerate(counts):
+                        total[i] += count
+            return merged
+        finally:
+            rp.close()
+
     def getPixelLine(self, z, t, pos, axis, channels=None, range=None):
         """
         Grab a horizontal or vertical line from the image pixel data, for the
@@ -9094,12 +10303,72 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
         finally:
             re.close()
 
+    def _onRenderingEngineCall(self, name, args):
+        """
+        Called by :class:`_RenderingEngineWrapper` before each call which
+        changes the rendering engine. The resolution and compression levels
+        are part of the cache key, any other call changes the settings.
+
+        :param name:    Name of the RenderingEngine method
+        :param args:    Arguments it is called with
+        """
+        if name == "setResolutionLevel":
+            self._reResolutionLevel = args[0]
+        elif name == "setCompressionLevel":
+            self._reCompressionLevel = args[0]
+        else:
+            self._onRenderingSettingsChanged()
+
+    def _onRenderingSettingsChanged(self):
+        """
+        Records an unsaved change of the rendering engine's settings, so
+        that regions rendered with the previous settings are not taken from
+        the :class:`omero.gateway.utils.RenderedTileCache`.
+        """
+        self._renderingSettings = next(_renderingSettingsTokens)
+
+    def _onRenderingSettingsSaved(self):
+        """
+        Drops the cached renders of this image once its rendering settings
+        have been saved or reset.
+        """
+        self._renderingDefKey = None
+        self._renderingSettings = None
+        cache = self._conn.getRenderedTileCache()
+        if cache is not None:
+            cache.invalidate(self.getPixelsId())
+
+    def _getRenderCacheKey(self, z, t, region, level, compression):
+        """
+        Returns the key of a rendered plane or region in the connection's
+        :class:`omero.gateway.utils.RenderedTileCache`, or None if caching
+        is disabled. The id and update event of the rendering def are
+        loaded once per rendering engine.
+        """
+        if self._conn.getRenderedTileCache() is None:
+            return None
+        if self._renderingDefKey is None:
+            ctx = self._conn.SERVICE_OPTS.copy()
+            ctx.setOmeroGroup(self.details.group.id.val)
+            rdid = self._re.getRenderingDefId(ctx)
+            rdef = self._conn.getQueryService().get(
+                "RenderingDef", rdid, ctx)
+            self._renderingDefKey = (rdid, rdef.details.updateEvent.id.val)
+        if level is None:
+            level = self._reResolutionLevel
+        if compression is None:
+            compression = self._reCompressionLevel
+        return ((self.getPixelsId(),) + self._renderingDefKey +
+                (self._renderingSettings, z, t, region, level, compression))
+
     @assert_re()
     def renderJpegRegion(self, z, t, x, y, width, height, level=None,
                          compression=0.9):
         """
         Return the data from rendering a region of an image plane.
         NB. Projection not supported by the API currently.
+        If a cache has been set with
+        :meth:`BlitzGateway.setRenderedTileCache`, it is consulted first.
 
         :param z:               The Z index. Ignored if projecting image.
         :param t:               The T index.
@@ -9111,6 +10380,14 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
         :type compression:      Float
         """
 
+        cache = self._conn.getRenderedTileCache()
+        key = self._getRenderCacheKey(
+            z, t, (x, y, width, height), level, compression)
+        if key is not None:
+            rv = cache.get(key)
+            if rv is not None:
+                return rv
+
         self._pd.z = long(z)
         self._pd.t = long(t)
 
@@ -9132,6 +10409,8 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
                     self._closeRE()
                     return self.renderJpeg(z, t, None)
             rv = self._re.renderCompressed(self._pd, self._conn.SERVICE_OPTS)
+            if key is not None:
+                cache.put(key, rv)
             return rv
         except (omero.ApiUsageException, omero.InternalException):
             logger.debug('On renderJpegRegion', exc_info=True)
@@ -9144,6 +10423,69 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
             self._closeRE()
             raise
 
+    @assert_re()
+    def renderJpegs(self, planes, compression=0.9, lookAhead=8):
+        """
+        Returns generator of the data from rendering a sequence of planes or
+        plane regions with the current settings, e.g. the frames of a movie.
+        Rather than waiting for each frame before requesting the next, up
+        to lookAhead requests are sent ahead to the rendering engine, so
+        the round-trip latency is paid once rather than once per frame. The
+        frames are yielded in the order of planes. If a cache has been set
+        with :meth:`BlitzGateway.setRenderedTileCache`, frames found in it
+        are not requested.
+        NB. Projection not supported.
+
+        :param planes:          Iterable of (z, t) or (z, t, region) tuples
+                                where region is (x, y, width, height) or
+                                None for the whole plane
+        :param compression:     Compression level for jpeg
+        :type compression:      Float
+        :param lookAhead:       Maximum number of frames requested ahead
+        """
+
+        if compression is not None:
+            self._re.setCompressionLevel(float(compression))
+        cache = self._conn.getRenderedTileCache()
+
+        def begin(plane):
+            # Returns (cache key, cached frame, pending request)
+            region = None
+            if len(plane) > 2 and plane[2] is not None:
+                region = tuple(plane[2])
+            key = self._getRenderCacheKey(
+                plane[0], plane[1], region, None, compression)
+            if key is not None:
+                rv = cache.get(key)
+                if rv is not None:
+                    return key, rv, None
+            pd = omero.romio.PlaneDef(self.PLANEDEF)
+            pd.z = long(plane[0])
+            pd.t = long(plane[1])
+            if region is not None:
+                regionDef = omero.romio.RegionDef()
+                regionDef.x, regionDef.y, regionDef.width, \
+                    regionDef.height = [int(v) for v in region]
+                pd.region = regionDef
+            return key, None, self._re.begin_renderCompressed(
+                pd, self._conn.SERVICE_OPTS)
+
+        def end(request):
+            key, rv, result = request
+            if result is not None:
+                rv = self._re.end_renderCompressed(result)
+                if key is not None:
+                    cache.put(key, rv)
+            return rv
+
+        pending = deque()
+        for plane in planes:
+            pending.append(begin(plane))
+            if len(pending) >= lookAhead:
+                yield end(pending.popleft())
+        while pending:
+            yield end(pending.popleft())
+
     def _closeRE(self):
         try:
             if self._re is not None:
@@ -9153,6 +10495,10 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
             logger.debug(e)
         finally:
             self._re = None  # This should be the ONLY location to null _re!
+            self._renderingDefKey = None
+            self._renderingSettings = None
+            self._reResolutionLevel = None
+            self._reCompressionLevel = None
 
     @assert_re()
     def renderJpeg(self, z=None, t=None, compression=0.9):
@@ -9186,8 +10532,18 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
             projection = self.PROJECTIONS.get(self._pr, -1)
             if not isinstance(
                     projection, omero.constants.projection.ProjectionType):
-                rv = self._re.renderCompressed(
-                    self._pd, self._conn.SERVICE_OPTS)
+                region = self._pd.region
+                if region is not None:
+                    region = (region.x, region.y, region.width,
+                              region.height)
+                key = self._getRenderCacheKey(z, t, region, None, compression)
+                cache = self._conn.getRenderedTileCache()
+                rv = key is not None and cache.get(key) or None
+                if rv is None:
+                    rv = self._re.renderCompressed(
+                        self._pd, self._conn.SERVICE_OPTS)
+                    if key is not None:
+                        cache.put(key, rv)
             else:
                 prStart, prEnd = 0, self.getSizeZ()-1
                 if self._prStart is not None:
@@ -9229,7 +10585,8 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
         size = e.generateTiff(self._conn.SERVICE_OPTS)
         if bufsize == 0:
             # Read it all in one go
-            return fileread(e, size, 65536)
+            return fileread(e, size, 65536,
+                            self._conn.c.getAdaptiveBlockSize(e))
         else:
             # generator using bufsize
             return (size, fileread_gen(e, size, bufsize))
@@ -9443,6 +10800,21 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
             rv = Image.open(i)
         return rv
 
+    def getLocalRenderer(self, lutDirectory=None, cache=None):
+        """
+        Returns a renderer which applies the current rendering settings to
+        raw tiles on the client, so that settings changed on it can be
+        re-rendered without a round trip to the rendering engine.
+        See :class:`omero.gateway.rendering.LocalRenderer`.
+
+        :param lutDirectory:    Directory of the channel LUT files
+        :param cache:           :class:`omero.gateway.utils.TileCache` for
+                                the raw planes
+        :return:                :class:`LocalRenderer`
+        """
+        from omero.gateway.rendering import LocalRenderer
+        return LocalRenderer(self, lutDirectory=lutDirectory, cache=cache)
+
     def renderSplitChannel(self, z, t, compression=0.9, border=2):
         """
         Prepares a jpeg representation of a 2d grid holding a render of each
@@ -9949,6 +11321,7 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
         ctx = self._conn.SERVICE_OPTS.copy()
         ctx.setOmeroGroup(self.details.group.id.val)
         self._re.saveCurrentSettings(ctx)
+        self._onRenderingSettingsSaved()
         return True
 
     @assert_re()
@@ -9967,6 +11340,8 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
         if not self.canAnnotate():
             save = False
         self._re.resetDefaultSettings(save, ctx)
+        if save:
+            self._onRenderingSettingsSaved()
         return True
 
     def countArchivedFiles(self):
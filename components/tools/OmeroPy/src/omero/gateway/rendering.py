@@ -0,0 +1,533 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+
+#
+# Copyright (C) 2026 University of Dundee & Open Microscopy Environment.
+# All rights reserved.
+#
+# This program is free software; you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation; either version 2 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License along
+# with this program; if not, write to the Free Software Foundation, Inc.,
+# 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+"""
+Client-side rendering of raw pixel data.
+
+:class:`LocalRenderer` takes a snapshot of the rendering settings of an
+:class:`omero.gateway.ImageWrapper` and applies them to raw tiles read
+through :meth:`omero.gateway.PixelsWrapper.getTiles`, producing the same
+output as the server's ``renderAsPackedInt``. Once the settings have been
+loaded, changing a channel window, colour, quantization map or LUT and
+rendering again needs no server round trip, and the raw planes are kept
+in a :class:`omero.gateway.utils.TileCache`.
+"""
+
+import os
+import logging
+import threading
+
+import numpy
+
+from omero.gateway.utils import TileCache
+
+logger = logging.getLogger(__name__)
+
+# Codomain interval of the quantization, as set by the server's QuantumDef
+CD_START = 0
+CD_END = 255
+
+LINEAR = "linear"
+POLYNOMIAL = "polynomial"
+LOGARITHMIC = "logarithmic"
+EXPONENTIAL = "exponential"
+
+
+def _mapValues(values, family, coefficient):
+    """
+    Applies the value mapper of the given quantization family.
+    """
+    values = numpy.asarray(values, dtype=numpy.float64)
+    if family in (POLYNOMIAL, EXPONENTIAL):
+        return numpy.power(values, coefficient)
+    if family == LOGARITHMIC:
+        rv = numpy.zeros(values.shape)
+        positive = values > 0
+        rv[positive] = numpy.log(values[positive])
+        return rv
+    return values
+
+
+def quantize(values, start, end, family=LINEAR, coefficient=1.0,
+             inverted=False):
+    """
+    Maps raw pixel values into the [0, 255] codomain the same way the
+    server's quantum strategy does: values at or below the window start
+    map to 0, values above the window end to 255 and values in between
+    are mapped by the family's function, normalized over the window.
+
+    :param values:      numpy array of raw pixel values
+    :param start:       Window start
+    :param end:         Window end
+    :param family:      One of "linear", "polynomial", "logarithmic" or
+                        "exponential". Logarithmic maps values <= 0 to 0.
+    :param coefficient: Curve coefficient of the polynomial and exponential
+                        families
+    :param inverted:    If True, apply the reverse intensity codomain map
+    :return:            numpy uint8 array of the same shape
+    """
+    values = numpy.asarray(values, dtype=numpy.float64)
+    inside = numpy.clip(values, start, end)
+    with numpy.errstate(invalid='ignore', divide='ignore', over='ignore'):
+        if family == EXPONENTIAL:
+            # exp(x^k) normalized over the window, shifted by the window
+            # end so that it doesn't overflow for typical pixel values.
+            ps = _mapValues(start, family, coefficient)
+            pe = _mapValues(end, family, coefficient)
+            px = _mapValues(inside, family, coefficient)
+            num = numpy.exp(px - pe) - numpy.exp(ps - pe)
+            den = 1 - numpy.exp(ps - pe)
+        else:
+            ys = _mapValues(start, family, coefficient)
+            num = _mapValues(inside, family, coefficient) - ys
+            den = _mapValues(end, family, coefficient) - ys
+        if not float(den) > 0:
+            v = numpy.where(values > start, CD_END, CD_START)
+        else:
+            v = numpy.floor(num * (CD_END - CD_START) / den + 0.5)
+            v += CD_START
+            v[values <= start] = CD_START
+            v[values > end] = CD_END
+    v = numpy.nan_to_num(v)
+    if inverted:
+        v = CD_END - v + CD_START
+    return v.astype(numpy.uint8)
+
+
+# Largest number of entries of a quantization table, see quantizeWithTable
+MAX_TABLE_SIZE = 65536
+
+
+def getTableRange(dtype, start, end):
+    """
+    Returns the range (lo, hi) of the integer values which a quantization
+    table for the given pixel type and window has to cover, or None if the
+    values have to be quantized directly: for floating point types or if
+    the range would exceed :data:`MAX_TABLE_SIZE` entries.
+    """
+    dtype = numpy.dtype(dtype)
+    if dtype.kind not in "iu":
+        return None
+    info = numpy.iinfo(dtype)
+    lo = max(int(numpy.floor(start)), int(info.min))
+    # One past the window end, so that clipping keeps values above it
+    hi = min(int(numpy.ceil(end)) + 1, int(info.max))
+    if lo > hi or hi - lo + 1 > MAX_TABLE_SIZE:
+        return None
+    return lo, hi
+
+
+def buildQuantizationTable(lo, hi, start, end, family=LINEAR,
+                           coefficient=1.0, inverted=False):
+    """
+    Returns the result of :func:`quantize` for each integer from lo to hi.
+    """
+    return quantize(numpy.arange(lo, hi + 1), start, end, family,
+                    coefficient, inverted)
+
+
+def quantizeWithTable(values, table, lo, hi):
+    """
+    Quantizes integer values with a table from
+    :func:`buildQuantizationTable`. Values outside [lo, hi] are clipped,
+    which doesn't change the result since lo and hi enclose the window.
+    """
+    index = numpy.clip(values, lo, hi)
+    if lo != 0:
+        index = index.astype(numpy.intp) - lo
+    return table.take(index)
+
+
+def readLut(path):
+    """
+    Reads a lookup table file as found in the server's luts directory:
+    either 768 bytes of red, green and blue values, optionally after a
+    32 byte NIH Image "ICOL" header, or text with one line of red, green
+    and blue values (optionally preceded by an index) per entry.
+
+    :param path:    Path of the .lut file
+    :return:        numpy uint8 array of shape (256, 3)
+    """
+    with open(path, 'rb') as f:
+        data = f.read()
+    if data[:4] == b'ICOL' and len(data) >= 800:
+        return _binaryLut(data, 32)
+    if len(data) == 768:
+        return _binaryLut(data, 0)
+    rows = []
+    for line in data.splitlines():
+        try:
+            values = [int(v) for v in line.split()]
+        except ValueError:
+            continue    # Header, e.g. "Index Red Green Blue"
+        if len(values) == 4:
+            values = values[1:]
+        if len(values) == 3:
+            rows.append(values)
+    if len(rows) != 256:
+        raise ValueError("Not a valid lookup table: %s" % path)
+    return numpy.array(rows, dtype=numpy.uint8)
+
+
+def _binaryLut(data, offset):
+    return numpy.frombuffer(
+        data, dtype=numpy.uint8, count=768, offset=offset).reshape(3, 256).T
+
+
+def getLutDirectory():
+    """
+    Returns the directory of the lookup tables shipped with an OMERO
+    installation, or None if OMERO_HOME isn't set.
+    """
+    home = os.environ.get("OMERO_HOME")
+    if home:
+        return os.path.join(home, "lib", "scripts", "luts")
+    return None
+
+
+class LookupTable(object):
+    """
+    A parsed lookup table. Both arrays are read-only and may be shared.
+
+    :ivar name:     Path of the file relative to the LUT directory
+    :ivar rgb:      numpy uint8 array of shape (256, 3)
+    :ivar packed:   numpy int32 array of the 256 entries as packed ARGB
+    """
+
+    def __init__(self, name, rgb, mtime):
+        self.name = name
+        self.mtime = mtime
+        self.rgb = numpy.array(rgb, dtype=numpy.uint8)
+        self.rgb.flags.writeable = False
+        values = self.rgb.astype(numpy.uint32)
+        packed = (0xFF000000 | (values[:, 0] << 16) | (values[:, 1] << 8) |
+                  values[:, 2]).astype(numpy.uint32)
+        self.packed = packed.view(numpy.int32)
+        self.packed.flags.writeable = False
+
+    def __repr__(self):
+        return "<LookupTable %s>" % self.name
+
+
+class LutRegistry(object):
+    """
+    Thread-safe cache of the parsed lookup tables of one directory. Each
+    file is parsed on first use and again only once its modification time
+    has changed; use :func:`getLutRegistry` to share a registry.
+    """
+
+    def __init__(self, directory):
+        self.directory = directory
+        self._lock = threading.Lock()
+        self._paths = None      # name -> path, by relative path and basename
+        self._dirs = {}         # directory -> mtime when last scanned
+        self._tables = {}       # path -> LookupTable
+
+    def _scan(self):
+        paths = {}
+        dirs = {}
+        if self.directory and os.path.isdir(self.directory):
+            for dirpath, dirnames, filenames in os.walk(self.directory):
+                dirs[dirpath] = os.path.getmtime(dirpath)
+                for f in sorted(filenames):
+                    if not f.endswith(".lut"):
+                        continue
+                    path = os.path.join(dirpath, f)
+                    paths[os.path.relpath(path, self.directory)] = path
+                    paths.setdefault(f, path)
+        self._paths = paths
+        self._dirs = dirs
+
+    def _isStale(self):
+        try:
+            for d, mtime in self._dirs.items():
+                if os.path.getmtime(d) != mtime:
+                    return True
+        except OSError:
+            return True
+        return not self._dirs and self.directory is not None and \
+            os.path.isdir(self.directory)
+
+    def list(self):
+        """
+        Returns the sorted names, relative to the directory, of the
+        available lookup tables, e.g. "ncsa_paledit/cool.lut".
+        """
+        with self._lock:
+            if self._paths is None or self._isStale():
+                self._scan()
+            return sorted(n for n, p in self._paths.items()
+                          if os.path.relpath(p, self.directory) == n)
+
+    def get(self, name):
+        """
+        Returns the :class:`LookupTable` of the given name, either its
+        path relative to the directory or its file name, e.g. "cool.lut",
+        or None if there is no such table.
+        """
+        with self._lock:
+            if self._paths is None or (
+                    name not in self._paths and self._isStale()):
+                self._scan()
+            path = self._paths.get(name)
+            if path is None:
+                return None
+            try:
+                mtime = os.path.getmtime(path)
+            except OSError:
+                self._scan()
+                self._tables.pop(path, None)
+                return None
+            table = self._tables.get(path)
+            if table is None or table.mtime != mtime:
+                table = LookupTable(
+                    os.path.relpath(path, self.directory), readLut(path),
+                    mtime)
+                self._tables[path] = table
+            return table
+
+    def clear(self):
+        """
+        Drops all parsed tables.
+        """
+        with self._lock:
+            self._paths = None
+            self._dirs = {}
+            self._tables = {}
+
+
+_registries = {}
+_registriesLock = threading.Lock()
+
+
+def getLutRegistry(directory=None):
+    """
+    Returns the shared :class:`LutRegistry` of a directory, by default
+    that of :func:`getLutDirectory`.
+    """
+    if directory is None:
+        directory = getLutDirectory()
+    key = directory and os.path.abspath(directory)
+    with _registriesLock:
+        registry = _registries.get(key)
+        if registry is None:
+            registry = LutRegistry(key)
+            _registries[key] = registry
+        return registry
+
+
+class ChannelBinding(object):
+    """
+    Rendering settings of a single channel, as a plain object which can
+    be modified locally, e.g. while a slider is dragged.
+    """
+
+    def __init__(self, active=True, start=0.0, end=255.0,
+                 rgba=(255, 255, 255, 255), family=LINEAR, coefficient=1.0,
+                 inverted=False, lut=None):
+        self.active = active
+        self.start = start
+        self.end = end
+        self.rgba = tuple(rgba)
+        self.family = family
+        self.coefficient = coefficient
+        self.inverted = inverted
+        self.lut = lut
+
+    @classmethod
+    def fromChannel(cls, channel):
+        """
+        Loads the settings of a :class:`omero.gateway.ChannelWrapper` with
+        a rendering engine.
+        """
+        color = channel.getColor()
+        return cls(active=channel.isActive(),
+                   start=channel.getWindowStart(),
+                   end=channel.getWindowEnd(),
+                   rgba=(color.getRed(), color.getGreen(), color.getBlue(),
+                         color.getAlpha()),
+                   family=channel.getFamily() or LINEAR,
+                   coefficient=channel.getCoefficient(),
+                   inverted=channel.isInverted(),
+                   lut=channel.getLut())
+
+    def __repr__(self):
+        return ("<ChannelBinding active=%s window=%s-%s rgba=%s family=%s "
+                "coefficient=%s inverted=%s lut=%s>" % (
+                    self.active, self.start, self.end, self.rgba,
+                    self.family, self.coefficient, self.inverted, self.lut))
+
+
+class LocalRenderer(object):
+    """
+    Renders planes and regions of an image on the client from its raw
+    pixels. The rendering settings are read once from the image's
+    rendering engine and are then held in :attr:`bindings` and
+    :attr:`greyscale`, which may be changed freely before each render.
+    """
+
+    def __init__(self, image, lutDirectory=None, cache=None):
+        """
+        :param image:           :class:`omero.gateway.ImageWrapper`
+        :param lutDirectory:    Directory to look up channel LUTs in, by
+                                default that of :func:`getLutDirectory`.
+                                Channels whose LUT can't be found are
+                                rendered with their colour instead.
+        :param cache:           :class:`omero.gateway.utils.TileCache` for
+                                the raw planes; a new one by default
+        """
+        self._image = image
+        self._pixels = image.getPrimaryPixels()
+        if cache is None:
+            cache = TileCache()
+        self._cache = cache
+        self._luts = getLutRegistry(lutDirectory)
+        self._missing = set()
+        self._tables = {}   # channel -> (settings, lo, hi, table)
+        self.refresh()
+
+    def refresh(self):
+        """
+        Reloads the rendering settings from the image's rendering engine,
+        discarding any local changes.
+        """
+        channels = self._image.getChannels()
+        if channels is None:
+            raise ValueError("No rendering engine for image %s"
+                             % self._image.getId())
+        self.bindings = [ChannelBinding.fromChannel(c) for c in channels]
+        self.greyscale = self._image.isGreyscaleRenderingModel()
+        self.defaultZ = self._image.getDefaultZ()
+        self.defaultT = self._image.getDefaultT()
+
+    def getLut(self, name):
+        """
+        Returns the :class:`LookupTable` of the named LUT, e.g. "cool.lut",
+        or None if it can't be found.
+        """
+        table = self._luts.get(name)
+        if table is None and name not in self._missing:
+            self._missing.add(name)
+            logger.warn("Lookup table %s not found in %s, using the "
+                        "channel colour instead", name, self._luts.directory)
+        return table
+
+    def _quantize(self, c, binding, plane):
+        """
+        Quantizes a plane of channel c. Integer pixel types are looked up
+        in a table covering the window, built once per channel and kept
+        until the channel's settings change; other types are quantized
+        pixel by pixel.
+        """
+        b = binding
+        settings = (plane.dtype.str, b.start, b.end, b.family, b.coefficient,
+                    b.inverted)
+        cached = self._tables.get(c)
+        if cached is None or cached[0] != settings:
+            tableRange = getTableRange(plane.dtype, b.start, b.end)
+            if tableRange is None:
+                cached = (settings, None, None, None)
+            else:
+                lo, hi = tableRange
+                cached = (settings, lo, hi, buildQuantizationTable(
+                    lo, hi, b.start, b.end, b.family, b.coefficient,
+                    b.inverted))
+            self._tables[c] = cached
+        settings, lo, hi, table = cached
+        if table is None:
+            return quantize(plane, b.start, b.end, b.family, b.coefficient,
+                            b.inverted)
+        return quantizeWithTable(plane, table, lo, hi)
+
+    def _getShape(self, tile, level):
+        if tile is not None:
+            return (tile[3], tile[2])
+        if level:
+            sizeX, sizeY = self._pixels.getResolutionLevels()[level][:2]
+            return (sizeY, sizeX)
+        return (self._image.getSizeY(), self._image.getSizeX())
+
+    def render(self, z=None, t=None, tile=None, level=None):
+        """
+        Renders a plane, or a region of it, with the current settings.
+
+        :param z:       Z index, the default Z if None
+        :param t:       T index, the default T if None
+        :param tile:    Region (x, y, width, height) or None for the whole
+                        plane
+        :param level:   Resolution level as in
+                        :meth:`omero.gateway.PixelsWrapper.getTiles`
+        :return:        numpy uint8 array of shape (height, width, 3)
+        """
+        if z is None:
+            z = self.defaultZ
+        if t is None:
+            t = self.defaultT
+        active = [(c, b) for c, b in enumerate(self.bindings) if b.active]
+        if self.greyscale:
+            active = active[:1]
+        rgb = numpy.zeros(self._getShape(tile, level) + (3,))
+        if not active:
+            return rgb.astype(numpy.uint8)
+        planes = self._pixels.getTiles(
+            [(z, c, t, tile) for c, b in active], cache=self._cache,
+            level=level)
+        for (c, b), plane in zip(active, planes):
+            q = self._quantize(c, b, plane)
+            if self.greyscale:
+                rgb[...] = q[..., numpy.newaxis]
+                break
+            # As on the server, the contribution of each channel is
+            # truncated to an integer before the channels are added up
+            alpha = b.rgba[3] / 255.0
+            table = b.lut and self.getLut(b.lut)
+            if table is not None:
+                rgb += numpy.floor(table.rgb[q] * alpha)
+            else:
+                ratios = numpy.array(b.rgba[:3]) / 255.0 * alpha
+                rgb += numpy.floor(q[..., numpy.newaxis] * ratios)
+        return numpy.minimum(rgb, 255).astype(numpy.uint8)
+
+    def renderAsPackedInt(self, z=None, t=None, tile=None, level=None):
+        """
+        Renders as :meth:`render` but returns the pixels packed as ARGB
+        integers, as the server's ``renderAsPackedInt``.
+
+        :return:    numpy int32 array of shape (height, width)
+        """
+        rgb = self.render(z, t, tile, level).astype(numpy.uint32)
+        packed = (0xFF000000 | (rgb[..., 0] << 16) | (rgb[..., 1] << 8) |
+                  rgb[..., 2]).astype(numpy.uint32)
+        return packed.view(numpy.int32)
+
+    def renderImage(self, z=None, t=None, tile=None, level=None):
+        """
+        Renders as :meth:`render` and returns a PIL RGB Image.
+        """
+        try:
+            from PIL import Image   # see ticket:2597
+        except ImportError:  # pragma: nocover
+            import Image
+        return Image.fromarray(self.render(z, t, tile, level), 'RGB')
+
+    def __repr__(self):
+        return "<LocalRenderer image=%s greyscale=%s bindings=%s>" % (
+            self._image.getId(), self.greyscale, self.bindings)
@@ -23,8 +23,12 @@
 # Version: 1.0
 #
 
+import os
+import glob
 import logging
 import json
+import threading
+from collections import OrderedDict
 
 logger = logging.getLogger(__name__)
 
@@ -211,3 +215,424 @@ def propertiesToDict(m, prefix=None):
         except:
             d[items[-1]] = value
     return nested_dict
+
+
+class TileCache(object):
+
+    """
+    Client-side LRU cache for the raw bytes of pixel tiles, shared between
+    :class:`omero.gateway.PixelsWrapper` instances via the ``cache``
+    argument of :meth:`getTiles`.
+
+    Tiles are keyed by (pixelsId, z, c, t, x, y, width, height), followed
+    by the resolution level for reads below full resolution, and held as
+    the byte strings returned by the RawPixelsStore, which is considerably
+    more compact than the unpacked numpy arrays. The total number of bytes
+    held is bounded by ``maxBytes``; least recently used tiles are evicted
+    first. Each pixels set is tagged with the id of its update event and all
+    of its tiles are dropped as soon as a different event id is seen, i.e.
+    once the pixel data has been modified.
+    """
+
+    def __init__(self, maxBytes=64 * 1024 * 1024):
+        if maxBytes < 0:
+            raise ValueError("maxBytes must not be negative: %s" % maxBytes)
+        self.maxBytes = maxBytes
+        self.size = 0
+        self.hits = 0
+        self.misses = 0
+        self.evictions = 0
+        self._tiles = OrderedDict()
+        self._versions = {}
+        self._lock = threading.RLock()
+
+    def _validate(self, pixelsId, version):
+        """
+        Drops all tiles of pixelsId if they were cached for another version.
+        Must be called with the lock held.
+        """
+        if self._versions.get(pixelsId, version) != version:
+            self.invalidate(pixelsId)
+        self._versions[pixelsId] = version
+
+    def get(self, key, version=None):
+        """
+        Returns the cached bytes for key or None.
+
+        :param key:     Tuple (pixelsId, z, c, t, x, y, width, height)
+        :param version: Update event id of the pixels set
+        """
+        with self._lock:
+            self._validate(key[0], version)
+            data = self._tiles.pop(key, None)
+            if data is None:
+                self.misses += 1
+                return None
+            self._tiles[key] = data
+            self.hits += 1
+            return data
+
+    def put(self, key, data, version=None):
+        """
+        Adds the bytes of a tile, evicting least recently used tiles as
+        necessary. Tiles larger than the whole budget are not cached.
+
+        :param key:     Tuple (pixelsId, z, c, t, x, y, width, height)
+        :param data:    Bytes as returned by the RawPixelsStore
+        :param version: Update event id of the pixels set
+        """
+        if len(data) > self.maxBytes:
+            return
+        with self._lock:
+            self._validate(key[0], version)
+            old = self._tiles.pop(key, None)
+            if old is not None:
+                self.size -= len(old)
+            while self._tiles and self.size + len(data) > self.maxBytes:
+                evictedKey, evicted = self._tiles.popitem(last=False)
+                self.size -= len(evicted)
+                self.evictions += 1
+            self._tiles[key] = data
+            self.size += len(data)
+
+    def invalidate(self, pixelsId=None):
+        """
+        Drops all tiles of the given pixels set, or every tile if None.
+        """
+        with self._lock:
+            if pixelsId is None:
+                self._tiles.clear()
+                self._versions.clear()
+                self.size = 0
+                return
+            for key in [k for k in self._tiles if k[0] == pixelsId]:
+                self.size -= len(self._tiles.pop(key))
+            self._versions.pop(pixelsId, None)
+
+    def getStats(self):
+        """
+        Returns a dict of the hit, miss and eviction counters together with
+        the number of tiles and bytes currently held.
+        """
+        with self._lock:
+            return {"hits": self.hits,
+                    "misses": self.misses,
+                    "evictions": self.evictions,
+                    "tiles": len(self._tiles),
+                    "bytes": self.size}
+
+
+class RenderedTileCache(TileCache):
+
+    """
+    Client-side LRU cache for the compressed output of the rendering
+    engine. Enable it for a connection with
+    :meth:`omero.gateway.BlitzGateway.setRenderedTileCache`. It is then
+    used by :meth:`omero.gateway.ImageWrapper.renderJpeg` and
+    :meth:`omero.gateway.ImageWrapper.renderJpegRegion`, so that panning
+    back over a region already seen needs no call to the server.
+
+    Entries are keyed by (pixelsId, renderingDefId, renderingDefVersion,
+    settings, z, t, region, level, compression). renderingDefVersion is
+    the update event of the saved rendering settings. settings is None
+    while the settings are as saved, and a new token for every unsaved
+    change made through the wrapper. Saving or resetting the settings
+    drops every entry of the pixels set; the budget of ``maxBytes`` is
+    otherwise enforced as in :class:`TileCache`.
+    """
+
+    def __init__(self, maxBytes=32 * 1024 * 1024):
+        super(RenderedTileCache, self).__init__(maxBytes)
+
+
+def safeFileName(name):
+    """
+    Replaces the characters of name which aren't safe in a file name,
+    e.g. the colons of an IPv6 address, with underscores.
+    """
+    return "".join(ch if ch.isalnum() or ch in ".-_" else "_"
+                   for ch in str(name))
+
+
+class PixelsMirror(object):
+
+    """
+    Opt-in local copy of pixel data for repeated analysis runs over the
+    same images, passed to :meth:`omero.gateway.PixelsWrapper.getTiles`
+    via its ``mirror`` argument.
+
+    Each pixels set is kept in a memory-mapped file in ``directory`` in the
+    byte order sent by the server, together with a small map recording
+    which planes have been written. The first access to a plane downloads
+    it in full and writes it into the mapping; every later access to the
+    plane, or to any tile of it, is served from the mapping. The files are
+    named after the update event of the pixels set so that data mirrored
+    before the pixels were modified is discarded rather than reused, and
+    are kept in a subdirectory per server so that the pixels of different
+    servers with the same ids never mix. The planes are returned as
+    read-only views.
+    """
+
+    def __init__(self, directory=None):
+        if directory is None:
+            from omero.util import get_omero_userdir
+            directory = get_omero_userdir() / "pixels"
+        self.directory = str(directory)
+        if not os.path.isdir(self.directory):
+            os.makedirs(self.directory)
+        self._open = {}
+        self._lock = threading.Lock()
+
+    def _prefix(self, pixelsId, server):
+        directory = self.directory
+        if server is not None:
+            directory = os.path.join(directory, safeFileName(server))
+            if not os.path.isdir(directory):
+                os.makedirs(directory)
+        return os.path.join(directory, "%s-" % pixelsId)
+
+    def open(self, pixelsId, version, shape, dtype, server=None):
+        """
+        Returns the :class:`MirroredPixels` for the given pixels set,
+        creating its files if necessary and removing any left from
+        other versions.
+
+        :param pixelsId:    Id of the pixels set
+        :param version:     Update event id of the pixels set. Required,
+                            since without it modified pixels could not be
+                            told apart from the mirrored ones.
+        :param shape:       (sizeT, sizeC, sizeZ, sizeY, sizeX)
+        :param dtype:       numpy dtype of the pixel values
+        :param server:      Server of the pixels set, e.g. as returned by
+                            :meth:`omero.gateway.BlitzGateway.getServerKey`
+        """
+        import numpy
+
+        if version is None:
+            raise ValueError("No version for pixels %s" % pixelsId)
+        with self._lock:
+            mirrored = self._open.get((server, pixelsId))
+            if mirrored is not None and mirrored.version == version:
+                return mirrored
+            prefix = self._prefix(pixelsId, server)
+            name = "%s%s" % (prefix, version)
+            for old in glob.glob("%s*" % prefix):
+                if not old.startswith(name + "."):
+                    logger.debug("Removing stale mirror %s", old)
+                    os.remove(old)
+            mode = "w+"
+            if os.path.exists(name + ".pixels") and \
+                    os.path.exists(name + ".planes"):
+                mode = "r+"
+            data = numpy.memmap(name + ".pixels", dtype=dtype, mode=mode,
+                                shape=tuple(shape))
+            present = numpy.memmap(name + ".planes", dtype=numpy.uint8,
+                                   mode=mode, shape=tuple(shape[:3]))
+            mirrored = MirroredPixels(version, data, present)
+            self._open[(server, pixelsId)] = mirrored
+            return mirrored
+
+    def invalidate(self, pixelsId, server=None):
+        """
+        Removes all mirrored data of the given pixels set.
+        """
+        with self._lock:
+            self._open.pop((server, pixelsId), None)
+            for old in glob.glob("%s*" % self._prefix(pixelsId, server)):
+                os.remove(old)
+
+
+class MirroredPixels(object):
+
+    """
+    Memory-mapped planes of a single pixels set, see :class:`PixelsMirror`.
+    """
+
+    def __init__(self, version, data, present):
+        self.version = version
+        self.data = data
+        self.present = present
+
+    def getPlane(self, z, c, t):
+        """
+        Returns a read-only 2D view on the mapped plane, or None if not
+        mirrored yet.
+        """
+        if not self.present[t, c, z]:
+            return None
+        plane = self.data[t, c, z]
+        plane.flags.writeable = False
+        return plane
+
+    def putPlane(self, z, c, t, rawPlane):
+        """
+        Writes the bytes of a plane as sent by the RawPixelsStore into the
+        mapping and returns a read-only 2D view on it. The plane is only
+        marked as present once its data has been flushed.
+        """
+        import numpy
+
+        plane = self.data[t, c, z]
+        plane[...] = numpy.frombuffer(
+            rawPlane, dtype=self.data.dtype).reshape(plane.shape)
+        self.data.flush()
+        self.present[t, c, z] = 1
+        self.present.flush()
+        plane.flags.writeable = False
+        return plane
+
+
+class ThumbnailCache(object):
+
+    """
+    Persistent client-side cache of thumbnails, enabled for a connection
+    with :meth:`omero.gateway.BlitzGateway.setThumbnailCache` and used by
+    :meth:`omero.gateway.BlitzGateway.getThumbnailSet` and
+    :meth:`omero.gateway.BlitzGateway.streamThumbnailSet`.
+
+    Each thumbnail is stored in ``directory`` as a file named after its
+    pixels id, size, version and scope. The version identifies the
+    rendering settings the server renders the thumbnail with for the
+    current user, as returned in bulk by
+    :meth:`omero.gateway.BlitzGateway.getRenderingSettingsVersions`, and
+    the scope is the server and user, so that a cache shared by several
+    users or servers never returns a thumbnail rendered for another. A
+    thumbnail is only returned for the version it was stored with, and
+    storing a new version removes the old ones of the same scope. The
+    files are kept below ``maxBytes`` in total by removing the least
+    recently used ones, as recorded by their modification times, so that
+    the order survives between sessions.
+    """
+
+    def __init__(self, directory=None, maxBytes=256 * 1024 * 1024):
+        if directory is None:
+            from omero.util import get_omero_userdir
+            directory = get_omero_userdir() / "thumbnails"
+        self.directory = str(directory)
+        if not os.path.isdir(self.directory):
+            os.makedirs(self.directory)
+        self.maxBytes = maxBytes
+        self.size = 0
+        self.hits = 0
+        self.misses = 0
+        self.evictions = 0
+        self._files = None      # name -> size, least recently used first
+        self._lock = threading.Lock()
+
+    def _load(self):
+        """
+        Reads the files of the cache directory in order of use. Must be
+        called with the lock held.
+        """
+        if self._files is not None:
+            return
+        entries = []
+        for path in glob.glob(os.path.join(self.directory, "*.jpg")):
+            try:
+                st = os.stat(path)
+            except OSError:
+                continue
+            entries.append((st.st_mtime, os.path.basename(path), st.st_size))
+        self._files = OrderedDict()
+        self.size = 0
+        for mtime, name, size in sorted(entries):
+            self._files[name] = size
+            self.size += size
+
+    def _name(self, pixelsId, size, version, scope=None):
+        if scope:
+            return "%s-%s-%s@%s.jpg" % (pixelsId, size, version,
+                                        safeFileName(scope))
+        return "%s-%s-%s.jpg" % (pixelsId, size, version)
+
+    def _scopeOf(self, name):
+        name = name[:-len(".jpg")]
+        if "@" in name:
+            return name.split("@", 1)[1]
+        return ""
+
+    def _remove(self, name):
+        self.size -= self._files.pop(name)
+        try:
+            os.remove(os.path.join(self.directory, name))
+        except OSError:
+            pass
+
+    def get(self, pixelsId, size, version, scope=None):
+        """
+        Returns the bytes of the cached thumbnail or None.
+
+        :param pixelsId:    Id of the pixels set
+        :param size:        Size of the thumbnail, e.g. its longest side
+        :param version:     Version of the rendering settings
+        :param scope:       Server and user the thumbnail was rendered for
+        """
+        name = self._name(pixelsId, size, version, scope)
+        with self._lock:
+            self._load()
+            if name not in self._files:
+                self.misses += 1
+                return None
+            path = os.path.join(self.directory, name)
+            try:
+                with open(path, "rb") as f:
+                    data = f.read()
+                os.utime(path, None)
+            except (IOError, OSError):
+                self.size -= self._files.pop(name)
+                self.misses += 1
+                return None
+            self._files[name] = self._files.pop(name)
+            self.hits += 1
+            return data
+
+    def put(self, pixelsId, size, version, data, scope=None):
+        """
+        Stores a thumbnail, replacing any other version of it in the same
+        scope and evicting least recently used thumbnails as necessary.
+        """
+        if len(data) > self.maxBytes:
+            return
+        name = self._name(pixelsId, size, version, scope)
+        prefix = "%s-%s-" % (pixelsId, size)
+        scope = self._scopeOf(name)
+        with self._lock:
+            self._load()
+            for old in [n for n in self._files if n.startswith(prefix) and
+                        self._scopeOf(n) == scope]:
+                self._remove(old)
+            while self._files and self.size + len(data) > self.maxBytes:
+                self._remove(next(iter(self._files)))
+                self.evictions += 1
+            path = os.path.join(self.directory, name)
+            tmp = "%s.%s.tmp" % (path, threading.current_thread().ident)
+            with open(tmp, "wb") as f:
+                f.write(data)
+            os.rename(tmp, path)
+            self._files[name] = len(data)
+            self.size += len(data)
+
+    def invalidate(self, pixelsId=None):
+        """
+        Removes the thumbnails of the given pixels set in every scope, or
+        all if None.
+        """
+        prefix = "%s-" % pixelsId
+        with self._lock:
+            self._load()
+            for name in list(self._files):
+                if pixelsId is None or name.startswith(prefix):
+                    self._remove(name)
+
+    def getStats(self):
+        """
+        Returns a dict of the hit, miss and eviction counters together with
+        the number of thumbnails and bytes currently held.
+        """
+        with self._lock:
+            self._load()
+            return {"hits": self.hits,
+                    "misses": self.misses,
+                    "evictions": self.evictions,
+                    "thumbnails": len(self._files),
+                    "bytes": self.size}
@@ -102,3 +102,104 @@ class Timer(threading._Timer):
                     self.finished.set()
                     raise
             break
+
+
+class OrderedPrefetcher(object):
+
+    """
+    Iterable which loads a sequence of items on a pool of worker threads
+    while yielding the results in the original order of the items.
+
+    Each worker calls setup() once to obtain a private resource (e.g. a
+    stateful service) which is passed to every load() call on that thread
+    and handed to teardown() when the worker finishes. At most look_ahead
+    results are loaded or being loaded ahead of the consumer, which bounds
+    both the number of in-flight requests and the memory held.
+
+    for rv in OrderedPrefetcher(items, load, workers=4, look_ahead=8):
+        ...
+
+    An exception raised by load() is re-raised by the iterator at the
+    position of the item which caused it.
+    """
+
+    def __init__(self, items, load, workers=2, look_ahead=4,
+                 setup=None, teardown=None):
+        if workers < 1:
+            raise ValueError("workers must be positive: %s" % workers)
+        if look_ahead < 1:
+            raise ValueError("look_ahead must be positive: %s" % look_ahead)
+        self.items = list(items)
+        self.load = load
+        self.workers = min(workers, max(1, len(self.items)))
+        self.look_ahead = look_ahead
+        self.setup = setup
+        self.teardown = teardown
+        self.log = logging.getLogger(omero.util.make_logname(self))
+
+    def __iter__(self):
+        items = self.items
+        results = {}
+        state = {"next": 0, "stop": False}
+        lock = threading.Condition()
+        permits = threading.Semaphore(self.look_ahead)
+
+        def work():
+            ctx = None
+            try:
+                if self.setup is not None:
+                    ctx = self.setup()
+                while True:
+                    permits.acquire()
+                    with lock:
+                        if state["stop"] or state["next"] >= len(items):
+                            return
+                        idx = state["next"]
+                        state["next"] += 1
+                    try:
+                        rv = (True, self.load(ctx, items[idx]))
+                    except Exception, e:
+                        rv = (False, e)
+                    with lock:
+                        results[idx] = rv
+                        lock.notifyAll()
+            except Exception, e:
+                # setup failed: report against the next unclaimed item
+                with lock:
+                    idx = state["next"]
+                    state["next"] = len(items)
+                    if idx < len(items):
+                        results[idx] = (False, e)
+                    lock.notifyAll()
+            finally:
+                if ctx is not None and self.teardown is not None:
+                    try:
+                        self.teardown(ctx)
+                    except Exception:
+                        self.log.error("Failed teardown", exc_info=True)
+
+        threads = []
+        for i in range(self.workers):
+            thread = threading.Thread(target=work,
+                                      name="OrderedPrefetcher-%s" % i)
+            thread.daemon = True
+            thread.start()
+            threads.append(thread)
+
+        try:
+            for idx in range(len(items)):
+                with lock:
+                    while idx not in results:
+                        lock.wait()
+                    ok, rv = results.pop(idx)
+                permits.release()
+                if not ok:
+                    raise rv
+                yield rv
+        finally:
+            with lock:
+                state["stop"] = True
+            for thread in threads:
+                permits.release()
+            for thread in threads:
+                thread.join()
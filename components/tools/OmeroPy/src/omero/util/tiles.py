@@ -7,6 +7,9 @@
 
 """
 
+import threading
+from Queue import Queue
+
 
 class TileLoopIteration(object):
     """
@@ -205,3 +208,127 @@ class RPSTileLoop(TileLoop):
         return TileLoop.forEachTile(
             self, sizeX, sizeY, sizeZ, sizeC, sizeT,
             tileWidth, tileHeight, iteration)
+
+
+class ParallelRPSTileData(TileData):
+    """
+    TileData which hands each setTile() call to a pool of worker threads,
+    each writing through its own RawPixelsStore. Since the tiles of a
+    TileLoop never overlap they can be written concurrently. setTile()
+    blocks while more than maxInFlightBytes are queued or being written.
+    close() waits for all outstanding writes and then saves the pixels
+    once through a store which has written at least one tile.
+    """
+
+    def __init__(self, loop, stores, maxInFlightBytes):
+        self.loop = loop
+        self.stores = stores
+        self.maxInFlightBytes = maxInFlightBytes
+        self.inFlightBytes = 0
+        self.error = None
+        self.written = set()
+        self.cond = threading.Condition()
+        self.queue = Queue()
+        self.threads = []
+        for i, rps in enumerate(stores):
+            thread = threading.Thread(
+                target=self._write, args=(i, rps),
+                name="ParallelRPSTileData-%s" % i)
+            thread.daemon = True
+            thread.start()
+            self.threads.append(thread)
+
+    def _write(self, index, rps):
+        while True:
+            item = self.queue.get()
+            if item is None:
+                return
+            buffer, args = item
+            try:
+                if self.error is None:
+                    rps.setTile(buffer, *args)
+                    with self.cond:
+                        self.written.add(index)
+            except Exception, e:
+                with self.cond:
+                    if self.error is None:
+                        self.error = e
+            finally:
+                with self.cond:
+                    self.inFlightBytes -= len(buffer)
+                    self.cond.notifyAll()
+
+    def _checkError(self):
+        if self.error is not None:
+            raise self.error
+
+    def getTile(self, z, c, t, x, y, w, h):
+        return self.stores[0].getTile(z, c, t, x, y, w, h)
+
+    def setTile(self, buffer, z, c, t, x, y, w, h):
+        size = len(buffer)
+        with self.cond:
+            # A tile larger than the budget is let through on its own
+            while self.inFlightBytes > 0 and \
+                    self.inFlightBytes + size > self.maxInFlightBytes and \
+                    self.error is None:
+                self.cond.wait()
+            self._checkError()
+            self.inFlightBytes += size
+        self.queue.put((buffer, (z, c, t, x, y, w, h)))
+
+    def close(self):
+        for thread in self.threads:
+            self.queue.put(None)
+        for thread in self.threads:
+            thread.join()
+        # A store which wrote no tiles has nothing to save and may
+        # return null, so save through one which did.
+        saver = min(self.written) if self.written else 0
+        try:
+            for i, rps in enumerate(self.stores):
+                if i != saver:
+                    rps.close()
+            self._checkError()
+            pixels = self.stores[saver].save()
+            self.loop.setPixels(pixels)
+        finally:
+            self.stores[saver].close()
+
+
+class ParallelRPSTileLoop(RPSTileLoop):
+    """
+    RPSTileLoop which writes tiles concurrently over several
+    RawPixelsStore instances. The iteration is still called for each tile
+    in order on the calling thread, but the setTile() calls it makes return
+    as soon as the tile has been queued. Only the number of bytes given by
+    maxInFlightBytes may be queued or being written at any one time.
+
+    The pixels are saved once, after all tiles have been written: the
+    other stores are closed first and save() is then called on one which
+    has written at least one tile. Any error raised by a write is re-raised
+    by a later setTile() call or at the end of forEachTile, in which case
+    save() is not called.
+    """
+
+    def __init__(self, session, pixels, stores=4,
+                 maxInFlightBytes=64 * 1024 * 1024):
+        RPSTileLoop.__init__(self, session, pixels)
+        if stores < 1:
+            raise ValueError("stores must be positive: %s" % stores)
+        self.storeCount = stores
+        self.maxInFlightBytes = maxInFlightBytes
+
+    def createData(self):
+        stores = []
+        try:
+            for i in range(self.storeCount):
+                rps = self.getSession().createRawPixelsStore()
+                stores.append(rps)
+                # 'false' is ignored here.
+                rps.setPixelsId(self.getPixels().getId().getValue(), False)
+        except:
+            for rps in stores:
+                rps.close()
+            raise
+        return ParallelRPSTileData(self, stores, self.maxInFlightBytes)
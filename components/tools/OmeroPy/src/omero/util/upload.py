@@ -0,0 +1,536 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+
+#
+# Copyright (C) 2026 University of Dundee & Open Microscopy Environment.
+# All rights reserved.
+#
+# This program is free software; you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation; either version 2 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License along
+# with this program; if not, write to the Free Software Foundation, Inc.,
+# 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+"""
+Uploads the files of a fileset to an import process
+(omero.grid.ImportProcessPrx) on several uploaders in parallel.
+"""
+
+import hashlib
+import json
+import logging
+import mmap
+import os
+import struct
+import threading
+import time
+import zlib
+from collections import deque
+from Queue import Queue
+
+import omero.util
+from omero.rtypes import rlist, rstring
+from omero.util.concurrency import OrderedPrefetcher
+# For complicated reasons `from omero.sys import ParametersI` doesn't work
+from omero_sys_ParametersI import ParametersI
+
+
+class ZlibChecksum(object):
+
+    """
+    hashlib-like wrapper of the 32-bit checksums of zlib. As with the
+    server's checksum providers, the hex digest lists the bytes of the
+    checksum in little-endian order.
+    """
+
+    def __init__(self, function):
+        self.function = function
+        self.value = function("")
+
+    def update(self, data):
+        self.value = self.function(data, self.value)
+
+    def hexdigest(self):
+        return struct.pack("<I", self.value & 0xffffffff).encode("hex")
+
+
+# Checksum algorithms of omero.checksum.supported which can be computed
+# incrementally here. Murmur3 needs a streaming implementation which
+# isn't available to Python and File-Size-64 isn't a digest of the data.
+CHECKSUM_PROVIDERS = {
+    "SHA1-160": hashlib.sha1,
+    "MD5-128": hashlib.md5,
+    "Adler-32": lambda: ZlibChecksum(zlib.adler32),
+    "CRC-32": lambda: ZlibChecksum(zlib.crc32),
+}
+
+
+def checksum_provider(algorithm="SHA1-160"):
+    """
+    Returns a new hashlib-like object with update() and hexdigest() for
+    the given value of omero.model.ChecksumAlgorithm.
+    """
+    try:
+        return CHECKSUM_PROVIDERS[algorithm]()
+    except KeyError:
+        raise ValueError("Unsupported checksum algorithm: %s" % algorithm)
+
+
+def file_checksum(path, algorithm="SHA1-160", block_size=1024 * 1024):
+    """
+    Returns the checksum of the file at path, see :func:`checksum_provider`.
+    """
+    digest = checksum_provider(algorithm)
+    f = open(path, "rb")
+    try:
+        size = os.fstat(f.fileno()).st_size
+        if size:
+            mapped = mmap.mmap(f.fileno(), 0, access=mmap.ACCESS_READ)
+            try:
+                for offset in xrange(0, size, block_size):
+                    digest.update(mapped[offset:offset + block_size])
+            finally:
+                mapped.close()
+    finally:
+        f.close()
+    return digest.hexdigest()
+
+
+def find_import(mrepo, client_paths):
+    """
+    Returns the running import process of the managed repository whose
+    fileset entries have exactly the given client paths, e.g. to resume
+    an upload which was interrupted, or None if there is none.
+
+    :param mrepo:           omero.grid.ManagedRepositoryPrx
+    :param client_paths:    Client paths of the fileset entries, as
+                            passed to importFileset or importPaths
+    """
+    wanted = sorted(str(p) for p in client_paths)
+    for proc in mrepo.listImports():
+        try:
+            fileset = proc.getFileset()
+            paths = sorted(e.clientPath.val
+                           for e in fileset.copyUsedFiles())
+            if paths == wanted:
+                return proc
+        except Exception:
+            logging.getLogger(__name__).debug(
+                "Failed to inspect import", exc_info=True)
+    return None
+
+
+class UploadJournal(object):
+
+    """
+    Append-only local record of the blocks of a fileset which have been
+    written to the server, with the checksum of each block, so that an
+    interrupted upload can be resumed with :class:`FilesetUploader`
+    instead of starting every file again from offset 0.
+
+    A block is only skipped on resume if the local file still has the
+    same size and modification time, the block still has the recorded
+    checksum and the server copy of the file is long enough to hold it.
+    The journal is reset when it is used for another fileset or with
+    another block size.
+    """
+
+    def __init__(self, path):
+        self.path = str(path)
+        self.lock = threading.Lock()
+        self.header = None
+        self.files = {}
+        self.stream = None
+
+    def open(self, fileset_id, block_size):
+        """
+        Loads the journal for the given fileset, discarding its contents
+        if they were recorded for anything else.
+        """
+        header = {"fileset": long(fileset_id), "block_size": block_size}
+        with self.lock:
+            self.files = {}
+            records = []
+            if os.path.exists(self.path):
+                f = open(self.path, "r")
+                try:
+                    for line in f:
+                        try:
+                            records.append(json.loads(line))
+                        except ValueError:
+                            break  # Partly written last record
+                finally:
+                    f.close()
+            if records and records[0] == header:
+                for record in records[1:]:
+                    self._replay(record)
+                self.stream = open(self.path, "a")
+            else:
+                self.stream = open(self.path, "w")
+                self._append(header)
+            self.header = header
+
+    def _replay(self, record):
+        if "block" in record:
+            blocks = self.files[record["file"]]["blocks"]
+            del blocks[record["block"]:]
+            blocks.append(record["sha1"])
+        else:
+            record["blocks"] = []
+            self.files[record["file"]] = record
+
+    def _append(self, record):
+        self.stream.write(json.dumps(record) + "\n")
+        self.stream.flush()
+        os.fsync(self.stream.fileno())
+
+    def get_blocks(self, index, path):
+        """
+        Returns the checksums of the blocks recorded for file index if it
+        is still the same local file, otherwise starts a new record.
+        """
+        stat = os.stat(path)
+        record = {"file": index, "path": os.path.abspath(path),
+                  "size": stat.st_size, "mtime": stat.st_mtime}
+        with self.lock:
+            known = self.files.get(index)
+            if known is not None:
+                blocks = known["blocks"]
+                del known["blocks"]
+                if known == record:
+                    known["blocks"] = blocks
+                    return list(blocks)
+            self._append(record)
+            self._replay(record)
+        return []
+
+    def add_block(self, index, block, checksum):
+        """
+        Records that block number block of file index, with the given
+        checksum, has been written to the server.
+        """
+        record = {"file": index, "block": block, "sha1": checksum}
+        with self.lock:
+            self._append(record)
+            self._replay(record)
+
+    def close(self):
+        with self.lock:
+            if self.stream is not None:
+                self.stream.close()
+                self.stream = None
+
+    def remove(self):
+        """
+        Closes and deletes the journal, e.g. once the upload is verified.
+        """
+        self.close()
+        if os.path.exists(self.path):
+            os.remove(self.path)
+
+
+class FilesetUploader(object):
+
+    """
+    Uploads the files of a fileset, i.e. what ImportLibrary.importImage
+    does for one file after another, over a pool of worker threads each
+    with its own RawFileStore from proc.getUploader(). The checksums, in
+    the algorithm of the import settings, are returned in the order of
+    the files so that they can be passed straight to proc.verifyUpload:
+
+        uploader = FilesetUploader(client, workers=4)
+        hashes = uploader.upload(proc, paths)
+        handle = proc.verifyUpload(hashes)
+
+    The paths must be in the order of the fileset entries of the import.
+    If a journal is given, the blocks written are recorded in it and a
+    later upload to the same import, e.g. found with :func:`find_import`
+    after a failure, resumes each file after its last recorded block:
+
+        proc = find_import(mrepo, paths) or mrepo.importPaths(paths)
+        uploader = FilesetUploader(client, journal=UploadJournal(jpath))
+        hashes = uploader.upload(proc, paths)
+
+    Each file is uploaded as a pipeline: blocks are sliced from a memory
+    map of the file, checksummed on a separate thread and written
+    asynchronously with up to depth writes in flight, so that reading,
+    hashing and sending overlap rather than following each other.
+    """
+
+    def __init__(self, client, workers=4, block_size=None, journal=None,
+                 algorithm="SHA1-160", depth=2, adaptive=None):
+        """
+        :param client:      omero.client, used for the default block size
+        :param workers:     Number of files uploaded concurrently
+        :param block_size:  Size of the blocks written, by default
+                            client.getDefaultBlockSize()
+        :param journal:     Optional :class:`UploadJournal`
+        :param algorithm:   Checksum algorithm, see :func:`checksum_provider`
+        :param depth:       Number of blocks of a file in flight
+        :param adaptive:    Optional :class:`omero.clients.AdaptiveBlockSize`
+                            choosing the size of the blocks, shared by the
+                            workers. By default client.getAdaptiveBlockSize()
+                            is used unless block_size or a journal, which
+                            needs blocks of a fixed size, is given.
+        """
+        if workers < 1:
+            raise ValueError("workers must be positive: %s" % workers)
+        if adaptive is None and block_size is None and journal is None:
+            adaptive = client.getAdaptiveBlockSize()
+        if adaptive is not None and journal is not None:
+            raise ValueError("A journal needs a fixed block size")
+        if block_size is None:
+            block_size = client.getDefaultBlockSize()
+        if block_size < 1:
+            raise ValueError("block_size must be positive: %s" % block_size)
+        if depth < 1:
+            raise ValueError("depth must be positive: %s" % depth)
+        checksum_provider(algorithm)  # Fail early if unsupported
+        self.client = client
+        self.workers = workers
+        self.block_size = block_size
+        self.journal = journal
+        self.algorithm = algorithm
+        self.depth = depth
+        self.adaptive = adaptive
+        self.log = logging.getLogger(omero.util.make_logname(self))
+
+    def upload(self, proc, paths, progress=None):
+        """
+        Uploads paths[i] to proc.getUploader(i) for every i and returns
+        the list of their checksums in the same order. The first
+        failure is re-raised once the preceding files are uploaded.
+
+        :param proc:        omero.grid.ImportProcessPrx
+        :param paths:       Local paths of the files of the fileset
+        :param progress:    Optional callable progress(done, total) called
+                            as the checksums become available, in order
+        """
+        items = list(enumerate(paths))
+        if self.journal is not None:
+            self.journal.open(proc.getFileset().id.val, self.block_size)
+
+        def load(ctx, item):
+            return self.upload_file(proc, item[0], item[1])
+
+        hashes = []
+        try:
+            for rv in OrderedPrefetcher(items, load, workers=self.workers,
+                                        look_ahead=max(1, len(items))):
+                hashes.append(rv)
+                if progress is not None:
+                    progress(len(hashes), len(items))
+        finally:
+            if self.journal is not None:
+                self.journal.close()
+        return hashes
+
+    def blocks(self, path):
+        """
+        Yields the blocks of the file at path, sliced from a read-only
+        memory map so that each block is copied once, straight into the
+        string which is both hashed and sent.
+        """
+        f = open(path, "rb")
+        try:
+            size = os.fstat(f.fileno()).st_size
+            if not size:
+                return
+            mapped = mmap.mmap(f.fileno(), 0, access=mmap.ACCESS_READ)
+            try:
+                offset = 0
+                while offset < size:
+                    count = self.block_size
+                    if self.adaptive is not None:
+                        count = self.adaptive.next()
+                    yield mapped[offset:offset + count]
+                    offset += count
+            finally:
+                mapped.close()
+        finally:
+            f.close()
+
+    def upload_file(self, proc, index, path):
+        """
+        Uploads a single file of the fileset and returns its checksum.
+        With a journal, the leading blocks which are already on the server
+        are checksummed but not sent again.
+        """
+        journal = self.journal
+        recorded = []
+        if journal is not None:
+            recorded = journal.get_blocks(index, path)
+        rfs = proc.getUploader(index)
+        hasher = HashStage(self.algorithm, self.depth, journal is not None)
+        hasher.start()
+        pending = deque()
+        blocks = self.blocks(path)
+        # Time of the last completed write: once the pipeline is full,
+        # the interval between completions is the time taken per block
+        last = [time.time()]
+
+        def complete():
+            (block_index, result, checksum, count) = pending.popleft()
+            rfs.end_write(result)
+            if self.adaptive is not None:
+                now = time.time()
+                self.adaptive.record(count, now - last[0])
+                last[0] = now
+            if journal is not None:
+                if checksum is None:
+                    checksum = hasher.checksum(block_index)
+                journal.add_block(index, block_index, checksum)
+
+        try:
+            uploaded = 0
+            if recorded:
+                uploaded = rfs.size()
+            rfs.write([], 0, 0)  # Touch, so empty files exist too
+            offset = 0
+            skipped = 0
+            for (block_index, block) in enumerate(blocks):
+                count = len(block)
+                checksum = None
+                if skipped == offset and block_index < len(recorded):
+                    checksum = hashlib.sha1(block).hexdigest()
+                    if (recorded[block_index] == checksum and
+                            offset + count <= uploaded):
+                        hasher.put(block_index, block, False)
+                        skipped += count
+                        offset += count
+                        continue
+                hasher.put(block_index, block, checksum is None)
+                pending.append((block_index,
+                                rfs.begin_write(block, offset, count),
+                                checksum, count))
+                offset += count
+                while len(pending) >= self.depth:
+                    complete()
+            while pending:
+                complete()
+            if skipped:
+                self.log.info("Resumed %s after %s bytes", path, skipped)
+        finally:
+            blocks.close()
+            while pending:
+                try:
+                    rfs.end_write(pending.popleft()[1])
+                except Exception:
+                    pass  # The first failure is being raised
+            try:
+                rfs.close()
+            finally:
+                rv = hasher.finish()
+        self.log.debug("Uploaded %s (%s)", path, index)
+        return rv
+
+
+class HashStage(threading.Thread):
+
+    """
+    Computes the checksum of a file from its blocks on a thread of its
+    own, optionally with the SHA1 of each block for the journal. At most
+    depth blocks are queued.
+    """
+
+    def __init__(self, algorithm, depth, blocks=False):
+        threading.Thread.__init__(self, name="HashStage")
+        self.daemon = True
+        self.digest = checksum_provider(algorithm)
+        self.queue = Queue(depth)
+        self.blocks = blocks
+        self.checksums = {}
+        self.error = None
+        self.lock = threading.Condition()
+
+    def put(self, index, block, checksum=True):
+        """
+        Queues the next block of the file. If checksum is True and block
+        checksums were requested, its SHA1 is made available to
+        :meth:`checksum`.
+        """
+        self.queue.put((index, block, checksum and self.blocks))
+
+    def run(self):
+        while True:
+            item = self.queue.get()
+            if item is None:
+                return
+            (index, block, checksum) = item
+            try:
+                self.digest.update(block)
+                if checksum:
+                    checksum = hashlib.sha1(block).hexdigest()
+            except Exception, e:
+                checksum = None
+                self.error = e
+            with self.lock:
+                if checksum:
+                    self.checksums[index] = checksum
+                self.lock.notifyAll()
+
+    def checksum(self, index):
+        """
+        Waits for and returns the SHA1 of the given block.
+        """
+        with self.lock:
+            while index not in self.checksums:
+                if self.error is not None:
+                    raise self.error
+                self.lock.wait()
+            return self.checksums.pop(index)
+
+    def finish(self):
+        """
+        Waits for the queued blocks and returns the checksum of the file.
+        """
+        self.queue.put(None)
+        self.join()
+        if self.error is not None:
+            raise self.error
+        return self.digest.hexdigest()
+
+
+def find_existing_files(client, paths, algorithm="SHA1-160", workers=4,
+                        batch=1000):
+    """
+    Computes the checksums of the given files, in parallel and without
+    uploading anything, and looks up the OriginalFiles with the same
+    checksum, in the same algorithm, which the user can read in any group.
+    This lets an import of files which the server already holds be
+    detected before any bytes are sent. The import process still needs
+    every file to be uploaded to it though: skipping those uploads would
+    need the server to link the existing files into the new fileset.
+
+    :param client:      omero.client with an active session
+    :param paths:       Local paths of the files
+    :param algorithm:   Checksum algorithm, e.g. the one passed to
+                        ManagedRepository.setChecksumAlgorithm
+    :param batch:       Maximum number of checksums per query
+    :return:            List of (checksum, [OriginalFile ids]) per path
+    """
+    checksums = list(OrderedPrefetcher(
+        paths, lambda ctx, path: file_checksum(path, algorithm),
+        workers=workers, look_ahead=max(1, len(paths))))
+    found = dict((h, []) for h in checksums)
+    unique = sorted(found)
+    query = client.sf.getQueryService()
+    ctx = client.getContext(group=-1)
+    sql = ("select f.id, f.hash from OriginalFile f "
+           "where f.hash in (:hashes) and f.hasher.value = :algorithm")
+    for i in range(0, len(unique), batch):
+        params = ParametersI()
+        params.add("hashes", rlist([rstring(h)
+                                    for h in unique[i:i + batch]]))
+        params.add("algorithm", rstring(algorithm))
+        for row in query.projection(sql, params, ctx):
+            found[row[1].val].append(row[0].val)
+    return [(h, sorted(found[h])) for h in checksums]
@@ -17,6 +17,8 @@
 import pytest
 from cStringIO import StringIO
 import omero
+from omero.gateway.utils import RenderedTileCache
+from omero.gateway.utils import ThumbnailCache
 
 try:
     from PIL import Image  # see ticket:2597
@@ -100,6 +102,79 @@ class TestImage (object):
                 image_ids=[badimg_id])[badimg_id]
         # Big image (4k x 4k and up) thumb
 
+    def testStreamThumbnailSet(self, author_testimg_bad,
+                               author_testimg_big, gatewaywrapper):
+        img_ids = [self.image.id, author_testimg_big.id,
+                   author_testimg_bad.id]
+        conn = self.image._conn
+        expected = conn.getThumbnailSet(image_ids=img_ids, max_size=96)
+        streamed = list(conn.streamThumbnailSet(
+            img_ids, max_size=96, chunkSize=1, workers=2))
+        assert sorted(i for i, t in streamed) == sorted(expected)
+        for (img_id, thumb) in streamed:
+            thumb = Image.open(StringIO(thumb))  # Raises if invalid
+            assert thumb.size == (96, 96)
+
+        received = []
+        rv = conn.getThumbnailSet(
+            image_ids=img_ids, callback=lambda i, t: received.append(i))
+        assert sorted(received) == sorted(rv) == sorted(expected)
+        # Stop early
+        for thumb in conn.streamThumbnailSet(img_ids, chunkSize=1):
+            break
+        for v in gatewaywrapper.gateway.c.getSession().activeServices():
+            assert 'ThumbnailStore' not in v, 'Leaked thumbnail store!'
+
+    def testThumbnailCache(self, author_testimg_big, tmpdir):
+        img_ids = [self.image.id, author_testimg_big.id]
+        conn = self.image._conn
+        cache = ThumbnailCache(str(tmpdir))
+        conn.setThumbnailCache(cache)
+        try:
+            expected = conn.getThumbnailSet(image_ids=img_ids, max_size=96)
+            assert cache.getStats()["thumbnails"] == 2
+            assert conn.getThumbnailSet(
+                image_ids=img_ids, max_size=96) == expected
+            assert dict(conn.streamThumbnailSet(
+                img_ids, max_size=96)) == expected
+            assert cache.getStats()["hits"] == 4
+            # Another size is cached separately
+            conn.getThumbnailSet(image_ids=img_ids, max_size=64)
+            assert cache.getStats()["thumbnails"] == 4
+            # Thumbnails of older rendering settings aren't returned
+            pid = self.image.getPixelsId()
+            version = conn.getRenderingSettingsVersions([pid])[pid]
+            assert version is not None
+            scope = conn._getThumbnailCacheScope()
+            assert str(conn.getUserId()) in scope
+            cache.put(pid, 96, "0.0", "stale", scope)
+            assert cache.get(pid, 96, version, scope) is None
+        finally:
+            conn.setThumbnailCache(None)
+
+    def testThumbnailAtlas(self, author_testimg_big, author_testimg_bad):
+        img_ids = [self.image.id, author_testimg_big.id,
+                   author_testimg_bad.id]
+        conn = self.image._conn
+        data, index = conn.getThumbnailAtlas(img_ids, max_size=32)
+        atlas = Image.open(StringIO(data))  # Raises if invalid
+        assert atlas.size == (64, 32)
+        # The image without pixels is left out
+        assert index == {self.image.id: (0, 0, 32, 32),
+                         author_testimg_big.id: (32, 0, 32, 32)}
+        data, index = conn.getThumbnailAtlas(img_ids, max_size=32, columns=1,
+                                             format="png")
+        assert Image.open(StringIO(data)).size == (32, 64)
+        assert index[author_testimg_big.id] == (0, 32, 32, 32)
+        assert conn.getThumbnailAtlas([author_testimg_bad.id]) == (None, {})
+
+        dataset = self.image.getParent()
+        data, index = conn.getContainerThumbnailAtlas(
+            "Dataset", dataset.id, max_size=32)
+        assert self.image.id in index
+        assert conn.getContainerThumbnailAtlas(
+            "Dataset", dataset.id, max_size=32) == (data, index)
+
     def testRenderingModels(self):
         # default is color model
         cimg = self.image.renderJpeg(0, 0)
@@ -408,6 +483,64 @@ class TestImage (object):
         img = self.image.renderJpegRegion(0, 0, 0, 0, width, height, level=1)
         assert img is None
 
+    def testRenderJpegs(self, gatewaywrapper):
+        sizeZ = self.image.getSizeZ()
+        planes = [(z, 0) for z in range(sizeZ)] + [(0, 0, (0, 0, 10, 20))]
+        frames = list(self.image.renderJpegs(planes, lookAhead=2))
+        assert len(frames) == len(planes)
+        for z in range(sizeZ):
+            assert frames[z] == self.image.renderJpeg(z, 0)
+        img_file = Image.open(StringIO(frames[-1]))
+        img_file.verify()  # Raises if invalid
+        assert img_file.format == 'JPEG'
+        assert img_file.size == (10, 20)
+
+    def testRenderedTileCache(self, gatewaywrapper):
+        cache = RenderedTileCache()
+        self.image._conn.setRenderedTileCache(cache)
+        try:
+            region = self.image.renderJpegRegion(0, 0, 0, 0, 10, 20)
+            assert self.image.renderJpegRegion(0, 0, 0, 0, 10, 20) == region
+            assert cache.getStats()["hits"] == 1
+            # Any settings change must miss the cache
+            channel = self.image.getChannels()[0]
+            channel.setWindow(channel.getWindowStart(),
+                              channel.getWindowEnd())
+            assert self.image.renderJpegRegion(0, 0, 0, 0, 10, 20) == region
+            stats = cache.getStats()
+            assert stats["hits"] == 1
+            assert stats["tiles"] == 2
+            # Including those made directly on the rendering engine
+            self.image._re.setChannelWindow(
+                0, channel.getWindowStart(), channel.getWindowEnd())
+            assert self.image.renderJpegRegion(0, 0, 0, 0, 10, 20) == region
+            assert cache.getStats()["tiles"] == 3
+            frames = list(self.image.renderJpegs([(0, 0, (0, 0, 10, 20))]))
+            assert frames == [region]
+            assert cache.getStats()["hits"] == 2
+            self.image._onRenderingSettingsSaved()
+            assert cache.getStats()["tiles"] == 0
+        finally:
+            self.image._conn.setRenderedTileCache(None)
+
+    def testLocalRenderer(self, gatewaywrapper):
+        renderer = self.image.getLocalRenderer()
+        z = self.image.getDefaultZ()
+        t = self.image.getDefaultT()
+        pd = omero.romio.PlaneDef(self.image.PLANEDEF)
+        pd.z = long(z)
+        pd.t = long(t)
+        expected = self.image._re.renderAsPackedInt(pd)
+        packed = renderer.renderAsPackedInt(z, t)
+        assert packed.shape == (self.image.getSizeY(), self.image.getSizeX())
+        assert list(packed.flatten()) == list(expected)
+        # Local changes don't touch the server's settings
+        renderer.bindings[0].start = renderer.bindings[0].end
+        assert list(renderer.renderAsPackedInt(z, t).flatten()) != \
+            list(expected)
+        assert self.image.getChannels()[0].getWindowStart() != \
+            renderer.bindings[0].start
+
     def testRenderBirdsEyeView(self, gatewaywrapper):
         img = self.image.renderBirdsEyeView(None)
         ifile = StringIO(img)
@@ -161,6 +161,238 @@ class TestPixels (object):
         firstPlane = pixels.getPlane(0, 0, 0)
         assert plane[0][0] == firstPlane[0][0]
 
+    def testPrefetchPlanes(self, gatewaywrapper):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+
+        current_services = gatewaywrapper.gateway.c.getStatefulServices()
+        current_count = len(current_services)
+
+        zctList = []
+        for z in range(image.getSizeZ()):
+            for c in range(image.getSizeC()):
+                for t in range(image.getSizeT()):
+                    zctList.append((z, c, t))
+        expected = list(pixels.getPlanes(zctList))
+        prefetched = list(pixels.prefetchPlanes(
+            zctList, stores=3, lookAhead=5))
+        assert len(prefetched) == len(expected)
+        for a, b in zip(expected, prefetched):
+            assert (a == b).all()
+
+        # Stores are closed even if the consumer stops early
+        for plane in pixels.prefetchPlanes(zctList, stores=2, lookAhead=2):
+            break
+        services = gatewaywrapper.gateway.c.getStatefulServices()
+        assert len(services) == current_count
+
+    def testGetTileInto(self):
+        import numpy
+        image = self.image
+        pixels = image.getPrimaryPixels()
+
+        plane = pixels.getPlane(0, 0, 0)
+        assert plane.dtype.isnative
+
+        # Fill a caller-supplied array, row by row and region by region
+        buf = numpy.zeros((3, 20), dtype=plane.dtype)
+        rv = pixels.getTile(0, 0, 0, (5, 7, 20, 1), out=buf[1:2, :])
+        assert rv.base is buf
+        assert (buf[1] == plane[7, 5:25]).all()
+        assert (buf[0] == 0).all()
+        pixels.getTile(0, 0, 0, (0, 0, 10, 2), out=buf[1:3, 10:20])
+        assert (buf[1:3, 10:20] == plane[0:2, 0:10]).all()
+
+        # The same buffer is reused for every plane
+        out = numpy.empty_like(plane)
+        for p in pixels.getPlanes([(0, 0, 0), (1, 0, 0)], out=out):
+            assert p is out
+        assert (out == pixels.getPlane(1, 0, 0)).all()
+
+    def testGetTileView(self):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+
+        plane = pixels.getPlane(0, 0, 0)
+        views = list(pixels.getPlanes([(0, 0, 0)], copy=False))
+        # Big-endian as sent by the server, '|' for 8-bit types
+        assert views[0].dtype == pixels._getPixelsDtype()
+        assert views[0].dtype.byteorder in ('>', '|')
+        assert not views[0].flags.writeable
+        assert (views[0] == plane).all()
+
+    def testGetTileCached(self):
+        from omero.gateway.utils import TileCache
+        image = self.image
+        pixels = image.getPrimaryPixels()
+
+        cache = TileCache()
+        tile = (10, 10, 20, 20)
+        first = pixels.getTile(0, 0, 0, tile, cache=cache)
+        second = pixels.getTile(0, 0, 0, tile, cache=cache)
+        assert (first == second).all()
+        assert (first == pixels.getTile(0, 0, 0, tile)).all()
+        stats = cache.getStats()
+        assert stats["misses"] == 1
+        assert stats["hits"] == 1
+
+    def testGetTileMirrored(self, tmpdir):
+        from omero.gateway.utils import PixelsMirror
+        image = self.image
+        pixels = image.getPrimaryPixels()
+
+        mirror = PixelsMirror(str(tmpdir))
+        tile = (10, 10, 20, 20)
+        expected = pixels.getTile(0, 0, 0, tile)
+        assert (pixels.getTile(0, 0, 0, tile, mirror=mirror) ==
+                expected).all()
+
+        # Further reads don't touch the server
+        pixels._prepareRawPixelsStore = lambda: MockRawPixelsStore(
+            pixels, good_calls=0)
+        assert (pixels.getTile(0, 0, 0, tile, mirror=mirror) ==
+                expected).all()
+        assert (pixels.getPlane(0, 0, 0, mirror=mirror)[10:30, 10:30] ==
+                expected).all()
+
+        # A new mirror on the same directory reuses the files
+        mirror = PixelsMirror(str(tmpdir))
+        assert (pixels.getTile(0, 0, 0, tile, mirror=mirror) ==
+                expected).all()
+
+    def testResolutionLevels(self):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+
+        # Not big enough for a pyramid: just full resolution
+        levels = pixels.getResolutionLevels()
+        assert len(levels) == 1
+        assert levels[0][:2] == (image.getSizeX(), image.getSizeY())
+        assert levels[0][2] > 0 and levels[0][3] > 0
+        assert pixels.getResolutionLevelForSize(10, 10) == 0
+        tile = (0, 0, 10, 10)
+        assert (pixels.getTile(0, 0, 0, tile, level=0) ==
+                pixels.getTile(0, 0, 0, tile)).all()
+
+    def testMapTiles(self):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+
+        zctList = [(z, 0, 0) for z in range(image.getSizeZ())]
+        grid = pixels.getTileGrid(64, 48, zctList)
+        covered = sum(w * h for z, c, t, (x, y, w, h) in grid)
+        assert covered == len(zctList) * image.getSizeX() * image.getSizeY()
+
+        sums = list(pixels.mapTiles(lambda zctTile, a: a.sum(), grid,
+                                    workers=3))
+        assert len(sums) == len(grid)
+        for zctTile, total in zip(grid, sums)[::len(grid) / 10 or 1]:
+            z, c, t, tile = zctTile
+            assert total == pixels.getTile(z, c, t, tile).sum()
+
+    def testPixelsCompression(self, gatewaywrapper):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+        conn = gatewaywrapper.gateway
+
+        expected = pixels.getPlane(0, 0, 0)
+        assert not conn.isPixelsCompression()
+        conn.setPixelsCompression(True)
+        try:
+            assert conn.isPixelsCompression()
+            assert (pixels.getPlane(0, 0, 0) == expected).all()
+            planes = list(pixels.prefetchPlanes([(0, 0, 0)]))
+            assert (planes[0] == expected).all()
+            # The store shared through the connection is left alone
+            assert not conn.createRawPixelsStore()._compress
+        finally:
+            conn.setPixelsCompression(False)
+
+    def testCompressedServiceUnregistered(self, gatewaywrapper):
+        conn = gatewaywrapper.gateway
+        before = dict(conn._tracked_services)
+        rps = conn.createRawPixelsStore().clone()
+        rps.setPixelsId(self.image.getPrimaryPixels().getId(), True,
+                        conn.SERVICE_OPTS)
+        assert len(conn._tracked_services) == len(before) + 1
+        rps.setCompress(True)
+        rps.close()
+        assert conn._tracked_services == before
+
+    @pytest.mark.parametrize('algorithm', [
+        'intmax', 'intmean', 'intsum', 'intmedian', 'intstd'])
+    def testProjectStack(self, algorithm):
+        import numpy
+        image = self.image
+        pixels = image.getPrimaryPixels()
+
+        sizeZ = image.getSizeZ()
+        stack = numpy.array(list(
+            pixels.getPlanes([(z, 0, 0) for z in range(0, sizeZ, 2)])))
+        expected = {'intmax': lambda a: a.max(axis=0),
+                    'intmean': lambda a: a.mean(axis=0),
+                    'intsum': lambda a: a.sum(axis=0, dtype=numpy.float64),
+                    'intmedian': lambda a: numpy.median(a, axis=0),
+                    'intstd': lambda a: a.std(axis=0)}[algorithm](stack)
+        # Small tiles which don't divide the plane evenly
+        projection = pixels.projectStack(
+            algorithm, 0, 0, stepping=2, tileWidth=37, tileHeight=29)
+        assert projection.shape == expected.shape
+        assert numpy.allclose(projection, expected)
+
+    def testProjectStacks(self):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+
+        ctList = [(c, t) for t in range(image.getSizeT())
+                  for c in range(image.getSizeC())]
+        projections = list(pixels.projectStacks('intmax', workers=3))
+        assert [(c, t) for c, t, p in projections] == ctList
+        for c, t, projection in projections:
+            assert (projection == pixels.projectStack(
+                'intmax', c, t, tileWidth=50, tileHeight=50)).all()
+        with pytest.raises(ValueError):
+            pixels.projectStack('intmode')
+
+    def testGetStack(self):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+
+        sizeZ = image.getSizeZ()
+        planes = list(pixels.getPlanes([(z, 0, 0) for z in range(sizeZ)]))
+
+        # One plane per chunk
+        chunks = list(pixels.getStack(0, 0, maxChunkBytes=1))
+        assert len(chunks) == sizeZ
+        for z, chunk in enumerate(chunks):
+            assert chunk.shape == (1,) + planes[z].shape
+            assert (chunk[0] == planes[z]).all()
+
+        # Whole stack in a single chunk
+        chunks = list(pixels.getStack(0, 0, maxChunkBytes=2**31))
+        assert len(chunks) == 1
+        for z in range(sizeZ):
+            assert (chunks[0][z] == planes[z]).all()
+
+    def testGetHypercube(self):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+
+        sizeZ = image.getSizeZ()
+        sizeC = image.getSizeC()
+        offset = (10, 20, 0, 0, 0)
+        size = (30, 40, sizeZ, sizeC, 1)
+        step = (1, 2, 2, 1, 1)
+        chunks = list(pixels.getHypercube(
+            offset, size, step, maxChunkBytes=1))
+        zs = range(0, sizeZ, 2)
+        assert len(chunks) == len(zs) * sizeC
+        for i, chunk in enumerate(chunks):
+            c, z = divmod(i, len(zs))
+            plane = pixels.getPlane(zs[z], c, 0)
+            assert chunk.shape == (1, 20, 30)
+            assert (chunk[0] == plane[20:60:2, 10:40]).all()
+
     def testGetPlanesExceptionOnGetPlane(self):
         """
         Tests exception handling in the gateway.getPlanes generator.
@@ -264,6 +496,34 @@ class TestPixels (object):
         services = gatewaywrapper.gateway.c.getStatefulServices()
         assert len(services) == current_count
 
+    def testGetStackHistogram(self, gatewaywrapper):
+        image = self.image
+
+        current_services = gatewaywrapper.gateway.c.getStatefulServices()
+        current_count = len(current_services)
+
+        channels = [0, 1]
+        binSize = 64
+        sizeZ = image.getSizeZ()
+        histogram = image.getStackHistogram(channels, binSize, tRange=(0, 0))
+        assert sorted(histogram.keys()) == channels
+        assert len(histogram[0]) == binSize
+
+        # Same as the sum of the single plane histograms
+        expected = [0] * binSize
+        for z in range(sizeZ):
+            plane = image.getHistogram(channels, binSize, True, z, 0)[0]
+            expected = [a + b for a, b in zip(expected, plane)]
+        assert histogram[0] == expected
+
+        # Sampling a single plane starts at the first one
+        sampled = image.getStackHistogram([0], binSize, tRange=(0, 0),
+                                          maxPlanes=1)
+        assert sampled[0] == image.getHistogram([0], binSize, True, 0, 0)[0]
+
+        services = gatewaywrapper.gateway.c.getStatefulServices()
+        assert len(services) == current_count
+
 
 class MockRawPixelsStore(object):
 
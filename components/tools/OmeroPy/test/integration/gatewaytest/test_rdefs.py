@@ -15,6 +15,7 @@
 """
 
 import pytest
+import threading
 
 from cStringIO import StringIO
 from PIL import Image, ImageChops
@@ -228,6 +229,53 @@ class TestRDefs (object):
         g = gatewaywrapper.gateway
         assert not g._assert_unregistered("testBatchCopy")
 
+    def testBatchCopyInChunks(self, gatewaywrapper, author_testimg_tiny,
+                              author_testimg_tiny2):
+        """
+        tests that settings are applied in parallel chunks with progress
+        reports and can be cancelled
+        """
+        g = gatewaywrapper.gateway
+        i1id = author_testimg_tiny.getId()
+        i2id = author_testimg_tiny2.getId()
+        reports = []
+
+        def progress(done, total, outcomes):
+            reports.append((done, total, outcomes))
+        rv = g.applySettingsToSetInChunks(
+            i1id, "Image", [i1id, i2id, i2id], chunkSize=1, workers=2,
+            progress=progress)
+        assert rv == {i2id: True}
+        assert reports == [(1, 1, {i2id: True})]
+
+        reports = []
+        rv = g.resetMinMaxInSetInChunks(
+            "Image", [i1id, i2id], chunkSize=1, progress=progress)
+        assert rv == {i1id: True, i2id: True}
+        assert [r[0] for r in reports] == [1, 2]
+
+        # The images are found whichever group the connection is set to
+        groupId = g.SERVICE_OPTS.getOmeroGroup()
+        g.SERVICE_OPTS.setOmeroGroup(
+            g.getAdminService().getSecurityRoles().userGroupId)
+        try:
+            rv = g.resetMinMaxInSetInChunks("Image", [i1id, i2id])
+        finally:
+            g.SERVICE_OPTS.setOmeroGroup(groupId)
+        assert rv == {i1id: True, i2id: True}
+
+        pid = author_testimg_tiny2.getPixelsId()
+        rv = g.resetDefaultsInSetInChunks("Pixels", [pid])
+        assert rv == {i2id: True}
+        with pytest.raises(ValueError):
+            g.resetDefaultsInSetInChunks("Well", [i1id])
+
+        cancel = threading.Event()
+        cancel.set()
+        assert g.resetMinMaxInSetInChunks(
+            "Image", [i1id, i2id], chunkSize=1, cancel=cancel) == {}
+        assert not g._assert_unregistered("testBatchCopyInChunks")
+
     def testGroupBasedPermissions(self, gatewaywrapper):
         """
         Test that images belonging to experimenters on collaborative rw group
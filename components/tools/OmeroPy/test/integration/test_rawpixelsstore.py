@@ -17,6 +17,7 @@ __import__("sys")
 
 from omero.util.tiles import TileLoopIteration
 from omero.util.tiles import RPSTileLoop
+from omero.util.tiles import ParallelRPSTileLoop
 from binascii import hexlify as hex
 
 
@@ -71,6 +72,22 @@ class TestRPS(ITest):
         pix = self.query.get("Pixels", pix.id.val)
         self.check_pix(pix)
 
+    def testTicket4737WithParallelForEachTile(self):
+        pix = self.create_pixels()
+
+        class Iteration(TileLoopIteration):
+
+            def run(self, data, z, c, t, x, y,
+                    tileWidth, tileHeight, tileCount):
+                data.setTile(
+                    [5] * tileWidth * tileHeight,
+                    z, c, t, x, y, tileWidth, tileHeight)
+
+        loop = ParallelRPSTileLoop(self.client.getSession(), pix, stores=3)
+        loop.forEachTile(256, 256, Iteration())
+        pix = self.query.get("Pixels", pix.id.val)
+        self.check_pix(pix)
+
     def testBigPlane(self):
         pix = self.create_pixels(x=4000, y=4000, z=1, t=1, c=1)
         rps = self.client.sf.createRawPixelsStore()
@@ -19,6 +19,8 @@ from omero.callbacks import CmdCallbackI
 from omero.gateway import BlitzGateway
 from omero.rtypes import unwrap
 from omero.util.temp_files import create_path
+from omero.util.upload import FilesetUploader
+from omero.util.upload import UploadJournal
 
 
 class TestRepository(AbstractRepoTest):
@@ -302,6 +304,28 @@ class TestPythonImporter(AbstractRepoTest):
         # closing the resources
         self.assert_import(client, proc, folder)
 
+    def testFilesetUploader(self, tmpdir):
+        client = self.new_client()
+        mrepo = self.get_managed_repo(client)
+        folder = self.create_test_dir()
+        paths = folder.files()
+
+        proc = mrepo.importPaths(paths)
+        try:
+            journal = UploadJournal(tmpdir.join("journal"))
+            uploader = FilesetUploader(client, workers=2, journal=journal)
+            hashes = uploader.upload(proc, paths)
+            assert hashes == [client.sha1(p) for p in paths]
+            # Uploading again resumes after the recorded blocks
+            assert uploader.upload(proc, paths) == hashes
+            journal.remove()
+            handle = proc.verifyUpload(hashes)
+            cb = CmdCallbackI(client, handle)
+            rsp = self.assert_passes(cb)
+            assert 1 == len(rsp.pixels)
+        finally:
+            proc.close()
+
     # Assure that the template functionality supports the same user
     # importing from multiple groups on a given day
     def testImportsFrom2Groups(self):
@@ -0,0 +1,394 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+
+#
+# Copyright (C) 2026 University of Dundee & Open Microscopy Environment.
+# All rights reserved.
+#
+# This program is free software; you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation; either version 2 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License along
+# with this program; if not, write to the Free Software Foundation, Inc.,
+# 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+"""
+gateway tests - client-side rendering
+"""
+
+import os
+
+import numpy
+import pytest
+
+from omero.gateway.rendering import ChannelBinding
+from omero.gateway.rendering import buildQuantizationTable
+from omero.gateway.rendering import getTableRange
+from omero.gateway.rendering import quantizeWithTable
+from omero.gateway.rendering import LocalRenderer
+from omero.gateway.rendering import LutRegistry
+from omero.gateway.rendering import getLutRegistry
+from omero.gateway.rendering import quantize
+from omero.gateway.rendering import readLut
+
+
+class MockColor(object):
+
+    def __init__(self, rgba):
+        self.rgba = rgba
+
+    def getRed(self):
+        return self.rgba[0]
+
+    def getGreen(self):
+        return self.rgba[1]
+
+    def getBlue(self):
+        return self.rgba[2]
+
+    def getAlpha(self):
+        return self.rgba[3]
+
+
+class MockChannel(object):
+
+    def __init__(self, rgba, start=0, end=255, active=True, lut=None):
+        self.rgba = rgba
+        self.start = start
+        self.end = end
+        self.active = active
+        self.lut = lut
+
+    def getColor(self):
+        return MockColor(self.rgba)
+
+    def isActive(self):
+        return self.active
+
+    def getWindowStart(self):
+        return self.start
+
+    def getWindowEnd(self):
+        return self.end
+
+    def getFamily(self):
+        return "linear"
+
+    def getCoefficient(self):
+        return 1.0
+
+    def isInverted(self):
+        return False
+
+    def getLut(self):
+        return self.lut
+
+
+class MockPixels(object):
+
+    def __init__(self, planes):
+        self.planes = planes
+        self.reads = []
+
+    def getTiles(self, zctTileList, cache=None, level=None):
+        for z, c, t, tile in zctTileList:
+            self.reads.append((z, c, t, tile))
+            plane = self.planes[c]
+            if tile is not None:
+                x, y, w, h = tile
+                plane = plane[y:y + h, x:x + w]
+            yield plane
+
+
+class MockImage(object):
+
+    def __init__(self, channels, planes, greyscale=False):
+        self.channels = channels
+        self.pixels = MockPixels(planes)
+        self.greyscale = greyscale
+
+    def getId(self):
+        return 1
+
+    def getPrimaryPixels(self):
+        return self.pixels
+
+    def getChannels(self):
+        return self.channels
+
+    def isGreyscaleRenderingModel(self):
+        return self.greyscale
+
+    def getDefaultZ(self):
+        return 0
+
+    def getDefaultT(self):
+        return 0
+
+    def getSizeX(self):
+        return self.pixels.planes[0].shape[1]
+
+    def getSizeY(self):
+        return self.pixels.planes[0].shape[0]
+
+
+class TestQuantize (object):
+
+    def test_linear(self):
+        values = numpy.array([0, 10, 15, 20, 30])
+        q = quantize(values, 10, 20)
+        assert q.dtype == numpy.uint8
+        assert list(q) == [0, 0, 128, 255, 255]
+
+    def test_inverted(self):
+        values = numpy.array([0, 15, 30])
+        assert list(quantize(values, 10, 20, inverted=True)) == [255, 127, 0]
+
+    def test_polynomial(self):
+        values = numpy.array([0, 5, 10])
+        assert list(quantize(values, 0, 10, "polynomial", 2.0)) == \
+            [0, 64, 255]
+
+    def test_logarithmic(self):
+        values = numpy.array([-1, 1, 10, 100])
+        assert list(quantize(values, 1, 100, "logarithmic")) == \
+            [0, 0, 128, 255]
+
+    def test_exponential_does_not_overflow(self):
+        values = numpy.array([0, 60000, 65535], dtype=numpy.uint16)
+        q = quantize(values, 0, 65535, "exponential", 1.0)
+        assert list(q) == [0, 0, 255]
+
+    def test_empty_window(self):
+        values = numpy.array([9, 10, 11])
+        assert list(quantize(values, 10, 10)) == [0, 0, 255]
+
+
+class TestQuantizationTable (object):
+
+    def test_range(self):
+        assert getTableRange(numpy.float32, 0, 10) is None
+        assert getTableRange(numpy.uint16, 0, 65535) == (0, 65535)
+        assert getTableRange(numpy.uint16, -5, 100000) == (0, 65535)
+        assert getTableRange(numpy.int16, -10.5, 20) == (-11, 21)
+        assert getTableRange(numpy.int32, 0, 1e6) is None
+        assert getTableRange(numpy.uint8, 300, 400) is None
+
+    @pytest.mark.parametrize('dtype', ['uint8', 'int8', 'uint16', 'int16',
+                                       'int32', 'uint32'])
+    @pytest.mark.parametrize('family,coefficient', [
+        ("linear", 1.0), ("polynomial", 0.5), ("logarithmic", 1.0),
+        ("exponential", 0.8)])
+    def test_matches_direct(self, dtype, family, coefficient):
+        info = numpy.iinfo(dtype)
+        values = numpy.random.randint(
+            max(info.min, -40000), min(info.max, 70000) + 1,
+            size=(16, 16)).astype(dtype)
+        values[0, :3] = [info.min, info.max, 0]
+        start, end = (3.5, 120) if info.max < 256 else (1, 1000.5)
+        lo, hi = getTableRange(values.dtype, start, end)
+        for inverted in (False, True):
+            table = buildQuantizationTable(lo, hi, start, end, family,
+                                           coefficient, inverted)
+            assert (quantizeWithTable(values, table, lo, hi) ==
+                    quantize(values, start, end, family, coefficient,
+                             inverted)).all()
+
+    def test_empty_window(self):
+        values = numpy.array([9, 10, 11], dtype=numpy.uint8)
+        lo, hi = getTableRange(values.dtype, 10, 10)
+        table = buildQuantizationTable(lo, hi, 10, 10)
+        assert list(quantizeWithTable(values, table, lo, hi)) == [0, 0, 255]
+
+
+class TestReadLut (object):
+
+    def ramp(self):
+        return numpy.arange(256, dtype=numpy.uint8)
+
+    def test_binary(self, tmpdir):
+        lut = tmpdir.join("ramp.lut")
+        lut.write(numpy.concatenate(
+            [self.ramp(), self.ramp()[::-1], self.ramp()]).tostring(), 'wb')
+        table = readLut(str(lut))
+        assert table.shape == (256, 3)
+        assert list(table[0]) == [0, 255, 0]
+        assert list(table[255]) == [255, 0, 255]
+
+    def test_icol_header(self, tmpdir):
+        lut = tmpdir.join("ramp.lut")
+        lut.write(b"ICOL" + b"\0" * 28 + numpy.concatenate(
+            [self.ramp()] * 3).tostring(), 'wb')
+        assert list(readLut(str(lut))[10]) == [10, 10, 10]
+
+    @pytest.mark.parametrize('index', [True, False])
+    def test_text(self, tmpdir, index):
+        lines = ["Index\tRed\tGreen\tBlue"] if index else []
+        for i in range(256):
+            row = "%s\t%s\t%s" % (i, 0, 255 - i)
+            lines.append(index and "%s\t%s" % (i, row) or row)
+        lut = tmpdir.join("text.lut")
+        lut.write("\n".join(lines))
+        assert list(readLut(str(lut))[1]) == [1, 0, 254]
+
+    def test_invalid(self, tmpdir):
+        lut = tmpdir.join("bad.lut")
+        lut.write("1 2 3\n")
+        pytest.raises(ValueError, readLut, str(lut))
+
+
+class TestLutRegistry (object):
+
+    def write(self, path, red=0, mtime=None):
+        ramp = numpy.arange(256, dtype=numpy.uint8)
+        red = numpy.full(256, red, dtype=numpy.uint8)
+        path.write(numpy.concatenate([red, ramp, ramp]).tostring(), 'wb',
+                   ensure=True)
+        if mtime is not None:
+            os.utime(str(path), (mtime, mtime))
+
+    def test_packed(self, tmpdir):
+        self.write(tmpdir.join("a.lut"), red=7)
+        table = LutRegistry(str(tmpdir)).get("a.lut")
+        assert table.name == "a.lut"
+        assert table.packed.dtype == numpy.int32
+        assert len(table.packed) == 256
+        assert table.packed[1] == numpy.int32(
+            numpy.uint32(0xFF070101).view(numpy.int32))
+        assert list(table.rgb[1]) == [7, 1, 1]
+        with pytest.raises(ValueError):
+            table.packed[0] = 0
+        with pytest.raises(ValueError):
+            table.rgb[0, 0] = 0
+
+    def test_parsed_once(self, tmpdir):
+        self.write(tmpdir.join("sub").join("a.lut"))
+        registry = LutRegistry(str(tmpdir))
+        table = registry.get("a.lut")
+        assert registry.get(os.path.join("sub", "a.lut")) is table
+        assert registry.get("a.lut") is table
+        assert registry.list() == [os.path.join("sub", "a.lut")]
+
+    def test_reload_on_change(self, tmpdir):
+        lut = tmpdir.join("a.lut")
+        self.write(lut, red=1, mtime=1000)
+        registry = LutRegistry(str(tmpdir))
+        assert registry.get("a.lut").rgb[0, 0] == 1
+        self.write(lut, red=2, mtime=2000)
+        assert registry.get("a.lut").rgb[0, 0] == 2
+
+    def test_missing_and_added(self, tmpdir):
+        registry = LutRegistry(str(tmpdir))
+        assert registry.get("a.lut") is None
+        self.write(tmpdir.join("a.lut"))
+        os.utime(str(tmpdir), (5000, 5000))
+        assert registry.get("a.lut") is not None
+        tmpdir.join("a.lut").remove()
+        assert registry.get("a.lut") is None
+
+    def test_shared(self, tmpdir):
+        assert getLutRegistry(str(tmpdir)) is getLutRegistry(str(tmpdir))
+
+
+class TestLocalRenderer (object):
+
+    def planes(self):
+        return [numpy.full((4, 6), 255, dtype=numpy.uint16),
+                numpy.full((4, 6), 100, dtype=numpy.uint16)]
+
+    def test_composite(self):
+        channels = [MockChannel((255, 0, 0, 255)),
+                    MockChannel((0, 255, 0, 255), end=200)]
+        renderer = LocalRenderer(MockImage(channels, self.planes()))
+        rgb = renderer.render()
+        assert rgb.shape == (4, 6, 3)
+        assert list(rgb[0, 0]) == [255, 128, 0]
+        packed = renderer.renderAsPackedInt()
+        assert packed.dtype == numpy.int32
+        assert packed[0, 0] == numpy.uint32(0xFFFF8000).view(numpy.int32)
+
+    def test_composite_truncates_each_channel(self):
+        # renderAsPackedInt of the server gives 0xFF020400 here: each
+        # channel adds int(3 * 128 / 255) = 1 red and int(3 * 200 / 255)
+        # = 2 green, where adding up first would give 3 and 4.
+        planes = [numpy.full((2, 2), 3, dtype=numpy.uint16)] * 2
+        channels = [MockChannel((128, 200, 0, 255)),
+                    MockChannel((128, 200, 0, 255))]
+        renderer = LocalRenderer(MockImage(channels, planes))
+        assert list(renderer.render()[0, 0]) == [2, 4, 0]
+        assert renderer.renderAsPackedInt()[0, 0] == \
+            numpy.uint32(0xFF020400).view(numpy.int32)
+
+    def test_local_changes(self):
+        channels = [MockChannel((255, 0, 0, 255)),
+                    MockChannel((0, 255, 0, 255))]
+        image = MockImage(channels, self.planes())
+        renderer = LocalRenderer(image)
+        renderer.bindings[1].active = False
+        renderer.bindings[0].rgba = (0, 0, 255, 255)
+        assert list(renderer.render(tile=(1, 1, 2, 2))[0, 0]) == [0, 0, 255]
+        assert image.pixels.reads == [(0, 0, 0, (1, 1, 2, 2))]
+        renderer.refresh()
+        assert renderer.bindings[0].rgba == (255, 0, 0, 255)
+
+    def test_greyscale(self):
+        channels = [MockChannel((255, 0, 0, 255), active=False),
+                    MockChannel((0, 255, 0, 255), end=200)]
+        image = MockImage(channels, self.planes(), greyscale=True)
+        rgb = LocalRenderer(image).render()
+        assert list(rgb[0, 0]) == [128, 128, 128]
+
+    def test_nothing_active(self):
+        channels = [MockChannel((255, 0, 0, 255), active=False)]
+        image = MockImage(channels, self.planes())
+        assert not LocalRenderer(image).render().any()
+        assert image.pixels.reads == []
+
+    def test_lut(self, tmpdir):
+        ramp = numpy.arange(256, dtype=numpy.uint8)
+        tmpdir.join("rev.lut").write(numpy.concatenate(
+            [ramp[::-1], ramp, ramp]).tostring(), 'wb')
+        channels = [MockChannel((255, 0, 0, 255), lut="rev.lut"),
+                    MockChannel((255, 0, 0, 255), lut="missing.lut",
+                                active=False)]
+        renderer = LocalRenderer(MockImage(channels, self.planes()),
+                                 lutDirectory=str(tmpdir))
+        assert list(renderer.render()[0, 0]) == [0, 255, 255]
+        # Missing LUTs fall back to the colour
+        renderer.bindings[0].active = False
+        renderer.bindings[1].active = True
+        assert list(renderer.render()[0, 0]) == [100, 0, 0]
+
+    def test_table_cached(self):
+        channels = [MockChannel((255, 255, 255, 255))]
+        renderer = LocalRenderer(MockImage(channels, self.planes()))
+        renderer.render()
+        table = renderer._tables[0][3]
+        assert table is not None
+        renderer.render()
+        assert renderer._tables[0][3] is table
+        renderer.bindings[0].start = 100
+        assert list(renderer.render()[0, 0]) == [255, 255, 255]
+        assert renderer._tables[0][3] is not table
+
+    def test_float_direct(self):
+        planes = [numpy.full((2, 2), 0.5, dtype=numpy.float32)]
+        channels = [MockChannel((255, 255, 255, 255), start=0, end=1)]
+        renderer = LocalRenderer(MockImage(channels, planes))
+        assert list(renderer.render()[0, 0]) == [128, 128, 128]
+        assert renderer._tables[0][3] is None
+
+    def test_binding_from_channel(self):
+        binding = ChannelBinding.fromChannel(
+            MockChannel((1, 2, 3, 4), start=5, end=6, lut="fire.lut"))
+        assert binding.rgba == (1, 2, 3, 4)
+        assert (binding.start, binding.end) == (5, 6)
+        assert binding.lut == "fire.lut"
+        assert binding.family == "linear"
@@ -12,6 +12,11 @@
 from omero.gateway.utils import ServiceOptsDict
 from omero.gateway.utils import toBoolean
 from omero.gateway.utils import propertiesToDict
+from omero.gateway.utils import TileCache
+from omero.gateway.utils import PixelsMirror
+from omero.gateway.utils import RenderedTileCache
+from omero.gateway.utils import ThumbnailCache
+import os
 import pytest
 
 
@@ -304,3 +309,218 @@ class TestHelpers (object):
 
         assert dictprop['str']['1']['enabled'] == 't'
         assert dictprop['str']['2']['enabled'] == 'f'
+
+
+class TestTileCache (object):
+
+    def key(self, pid=1, z=0):
+        return (pid, z, 0, 0, 0, 0, 10, 10)
+
+    def test_hit_and_miss(self):
+        cache = TileCache(100)
+        assert cache.get(self.key()) is None
+        cache.put(self.key(), "x" * 10)
+        assert cache.get(self.key()) == "x" * 10
+        stats = cache.getStats()
+        assert stats["hits"] == 1
+        assert stats["misses"] == 1
+        assert stats["tiles"] == 1
+        assert stats["bytes"] == 10
+
+    def test_lru_eviction(self):
+        cache = TileCache(30)
+        for z in range(3):
+            cache.put(self.key(z=z), "x" * 10)
+        # Touch the oldest so that z=1 becomes least recently used
+        assert cache.get(self.key(z=0)) is not None
+        cache.put(self.key(z=3), "x" * 10)
+        assert cache.get(self.key(z=1)) is None
+        assert cache.get(self.key(z=0)) is not None
+        assert cache.evictions == 1
+        assert cache.size == 30
+
+    def test_oversized_tile_not_cached(self):
+        cache = TileCache(5)
+        cache.put(self.key(), "x" * 10)
+        assert cache.get(self.key()) is None
+        assert cache.size == 0
+
+    def test_version_change_invalidates(self):
+        cache = TileCache(100)
+        cache.put(self.key(pid=1), "a", version=1)
+        cache.put(self.key(pid=2), "b", version=1)
+        assert cache.get(self.key(pid=1), version=2) is None
+        assert cache.get(self.key(pid=2), version=1) == "b"
+        assert cache.size == 1
+
+    def test_invalidate(self):
+        cache = TileCache(100)
+        cache.put(self.key(pid=1), "a")
+        cache.put(self.key(pid=2), "b")
+        cache.invalidate(1)
+        assert cache.get(self.key(pid=1)) is None
+        assert cache.get(self.key(pid=2)) == "b"
+        cache.invalidate()
+        assert cache.get(self.key(pid=2)) is None
+        assert cache.size == 0
+
+
+class TestRenderedTileCache (object):
+
+    def key(self, pid=1, rdef=(2, 3), settings=None):
+        return (pid,) + rdef + (settings, 0, 0, (0, 0, 10, 10), None, 0.9)
+
+    def test_keys(self):
+        cache = RenderedTileCache(100)
+        cache.put(self.key(), "a")
+        cache.put(self.key(settings=1), "b")
+        cache.put(self.key(rdef=(2, 4)), "c")
+        assert cache.get(self.key()) == "a"
+        assert cache.get(self.key(settings=1)) == "b"
+        assert cache.get(self.key(rdef=(2, 4))) == "c"
+        assert cache.get(self.key(settings=2)) is None
+
+    def test_invalidate(self):
+        cache = RenderedTileCache(100)
+        cache.put(self.key(), "a")
+        cache.put(self.key(pid=2), "b")
+        cache.invalidate(1)
+        assert cache.get(self.key()) is None
+        assert cache.get(self.key(pid=2)) == "b"
+
+
+class TestPixelsMirror (object):
+
+    shape = (1, 2, 3, 4, 5)
+
+    def raw(self, value):
+        import numpy
+        return numpy.array([[value] * 5] * 4, dtype='>u2').tostring()
+
+    def test_put_and_get(self, tmpdir):
+        mirror = PixelsMirror(str(tmpdir))
+        mirrored = mirror.open(1, 10, self.shape, '>u2')
+        assert mirrored.getPlane(2, 1, 0) is None
+        plane = mirrored.putPlane(2, 1, 0, self.raw(7))
+        assert (plane == 7).all()
+        assert (mirrored.getPlane(2, 1, 0) == 7).all()
+        assert mirrored.getPlane(1, 1, 0) is None
+        assert not plane.flags.writeable
+        assert not mirrored.getPlane(2, 1, 0).flags.writeable
+
+    def test_reopen(self, tmpdir):
+        mirrored = PixelsMirror(str(tmpdir)).open(1, 10, self.shape, '>u2')
+        mirrored.putPlane(0, 0, 0, self.raw(3))
+        del mirrored
+        mirrored = PixelsMirror(str(tmpdir)).open(1, 10, self.shape, '>u2')
+        assert (mirrored.getPlane(0, 0, 0) == 3).all()
+
+    def test_new_version_discards(self, tmpdir):
+        mirror = PixelsMirror(str(tmpdir))
+        mirror.open(1, 10, self.shape, '>u2').putPlane(
+            0, 0, 0, self.raw(3))
+        mirror.open(2, 10, self.shape, '>u2').putPlane(
+            0, 0, 0, self.raw(3))
+        mirrored = mirror.open(1, 11, self.shape, '>u2')
+        assert mirrored.getPlane(0, 0, 0) is None
+        assert sorted(f.basename for f in tmpdir.listdir()) == [
+            "1-11.pixels", "1-11.planes", "2-10.pixels", "2-10.planes"]
+
+    def test_version_required(self, tmpdir):
+        mirror = PixelsMirror(str(tmpdir))
+        with pytest.raises(ValueError):
+            mirror.open(1, None, self.shape, '>u2')
+        assert tmpdir.listdir() == []
+
+    def test_servers_kept_apart(self, tmpdir):
+        mirror = PixelsMirror(str(tmpdir))
+        mirror.open(1, 10, self.shape, '>u2', "a-4064").putPlane(
+            0, 0, 0, self.raw(3))
+        mirrored = mirror.open(1, 10, self.shape, '>u2', "b:1-4064")
+        assert mirrored.getPlane(0, 0, 0) is None
+        mirrored.putPlane(0, 0, 0, self.raw(5))
+        mirrored = PixelsMirror(str(tmpdir)).open(
+            1, 10, self.shape, '>u2', "a-4064")
+        assert (mirrored.getPlane(0, 0, 0) == 3).all()
+        assert sorted(f.basename for f in tmpdir.listdir()) == [
+            "a-4064", "b_1-4064"]
+
+    def test_invalidate(self, tmpdir):
+        mirror = PixelsMirror(str(tmpdir))
+        mirror.open(1, 10, self.shape, '>u2')
+        mirror.invalidate(1)
+        assert tmpdir.listdir() == []
+
+
+class TestThumbnailCache (object):
+
+    def test_put_and_get(self, tmpdir):
+        cache = ThumbnailCache(str(tmpdir), 100)
+        assert cache.get(1, 96, 5) is None
+        cache.put(1, 96, 5, "jpeg")
+        assert cache.get(1, 96, 5) == "jpeg"
+        assert cache.get(1, 64, 5) is None
+        assert cache.getStats() == {"hits": 1, "misses": 2, "evictions": 0,
+                                    "thumbnails": 1, "bytes": 4}
+
+    def test_new_version_replaces(self, tmpdir):
+        cache = ThumbnailCache(str(tmpdir), 100)
+        cache.put(1, 96, 5, "old")
+        cache.put(11, 96, 5, "other")
+        cache.put(1, 96, 6, "new")
+        assert cache.get(1, 96, 5) is None
+        assert cache.get(1, 96, 6) == "new"
+        assert cache.get(11, 96, 5) == "other"
+        assert len(tmpdir.listdir()) == 2
+
+    def test_lru_eviction(self, tmpdir):
+        cache = ThumbnailCache(str(tmpdir), 30)
+        for pid in range(3):
+            cache.put(pid, 96, 1, "x" * 10)
+        assert cache.get(0, 96, 1) is not None
+        cache.put(3, 96, 1, "x" * 10)
+        assert cache.get(1, 96, 1) is None
+        assert cache.evictions == 1
+        assert cache.size == 30
+
+    def test_reopen(self, tmpdir):
+        cache = ThumbnailCache(str(tmpdir), 30)
+        for pid in range(3):
+            cache.put(pid, 96, 1, "x" * 10)
+            # Make the order of use visible in the modification times
+            os.utime(str(tmpdir.join("%s-96-1.jpg" % pid)),
+                     (1000 + pid, 1000 + pid))
+        cache = ThumbnailCache(str(tmpdir), 30)
+        assert cache.getStats()["bytes"] == 30
+        cache.put(3, 96, 1, "x" * 10)
+        assert cache.get(0, 96, 1) is None
+        assert cache.get(1, 96, 1) == "x" * 10
+
+    def test_invalidate(self, tmpdir):
+        cache = ThumbnailCache(str(tmpdir), 100)
+        cache.put(1, 96, 1, "a")
+        cache.put(1, 64, 1, "b")
+        cache.put(2, 96, 1, "c")
+        cache.invalidate(1)
+        assert cache.get(1, 96, 1) is None
+        assert cache.get(1, 64, 1) is None
+        assert cache.get(2, 96, 1) == "c"
+        cache.invalidate()
+        assert tmpdir.listdir() == []
+
+    def test_scopes(self, tmpdir):
+        cache = ThumbnailCache(str(tmpdir), 100)
+        cache.put(1, 96, "3.7", "a", "host-4064-2")
+        cache.put(1, 96, "4.8", "b", "host-4064-3")
+        cache.put(1, 96, "3.7", "c", "other:host-4064-2")
+        assert cache.get(1, 96, "3.7", "host-4064-2") == "a"
+        assert cache.get(1, 96, "4.8", "host-4064-3") == "b"
+        assert cache.get(1, 96, "3.7", "other:host-4064-2") == "c"
+        assert cache.get(1, 96, "3.7") is None
+        # A new version only replaces the old one of the same scope
+        cache.put(1, 96, "3.9", "d", "host-4064-2")
+        assert cache.get(1, 96, "3.7", "host-4064-2") is None
+        assert cache.get(1, 96, "4.8", "host-4064-3") == "b"
+        assert cache.getStats()["thumbnails"] == 3
+        cache.invalidate(1)
+        assert tmpdir.listdir() == []
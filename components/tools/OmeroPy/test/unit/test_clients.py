@@ -20,8 +20,12 @@ Module documentation
 
 import Ice
 import logging
+import pytest
 import threading
+import omero
 import omero.clients as base
+from omero.rtypes import rlong
+from omero_model_OriginalFileI import OriginalFileI
 
 
 class MockCommunicator(object):
@@ -137,3 +141,127 @@ class TestKeepAlive(object):
         self.mc.assertResources()
         self.mc.enableKeepAlive(-1)
         self.mc.assertNoResources()
+
+
+class TestAdaptiveBlockSize(object):
+
+    def testBounds(self):
+        sizer = base.AdaptiveBlockSize(1000, minimum=100, maximum=10000)
+        assert sizer.next() == 1000
+        assert base.AdaptiveBlockSize(1, minimum=100).next() == 100
+        with pytest.raises(ValueError):
+            base.AdaptiveBlockSize(1000, minimum=100, maximum=10)
+
+    def testGrowsWithLatency(self):
+        # 1 MB/s with a round trip of 100 ms
+        sizer = base.AdaptiveBlockSize(1000, minimum=100, maximum=10 ** 9)
+        sizes = []
+        for i in range(20):
+            size = sizer.next()
+            sizes.append(size)
+            sizer.record(size, 0.1 + size / 1e6)
+        # Doubles at most per block up to 1 MB/s * 100 ms * ratio
+        assert sizes[:4] == [1000, 2000, 4000, 8000]
+        assert abs(sizes[-1] - 1e6 * 0.1 * sizer.ratio) < 1e5
+
+    def testShrinksWithoutLatency(self):
+        # 100 MB/s with a round trip of 0.1 ms
+        sizer = base.AdaptiveBlockSize(10 ** 7, minimum=10 ** 4)
+        sizer.measure(MockProxy(0.0001))
+        for i in range(20):
+            size = sizer.next()
+            sizer.record(size, 0.0001 + size / 1e8)
+        assert sizer.next() < 10 ** 7
+        assert sizer.next() >= 10 ** 4
+
+    def testMaximum(self):
+        sizer = base.AdaptiveBlockSize(1000, minimum=100, maximum=5000)
+        for i in range(10):
+            sizer.record(sizer.next(), 1.0 + sizer.next() / 1e6)
+        assert sizer.next() == 5000
+
+    def testFromProperties(self):
+        mc = MockClient()
+        try:
+            assert mc.getAdaptiveBlockSize() is None
+            props = mc.getProperties()
+            props.setProperty("omero.block_size", "4000")
+            props.setProperty("omero.block_size.adaptive", "true")
+            props.setProperty("omero.block_size.min", "1000")
+            props.setProperty("omero.block_size.max", "8000")
+            sizer = mc.getAdaptiveBlockSize()
+            assert (sizer.next(), sizer.minimum, sizer.maximum) == \
+                (4000, 1000, 8000)
+        finally:
+            mc.__del__()
+
+
+class TestAdaptiveDownload(object):
+
+    def download(self, tmpdir, data, short=None):
+        mc = MockClient()
+        mc._BaseClient__sf = MockDownloadSession(data, short)
+        mc.getContext = lambda group=None: {}
+        target = tmpdir.join("download")
+        try:
+            adaptive = base.AdaptiveBlockSize(3, minimum=2, maximum=8)
+            mc.download(OriginalFileI(1, False), str(target),
+                        adaptive=adaptive)
+            return target.read("rb")
+        finally:
+            mc._BaseClient__sf = None
+            mc.__del__()
+
+    def testDownload(self, tmpdir):
+        data = "".join(chr(i) for i in range(100))
+        assert self.download(tmpdir, data) == data
+
+    def testShortRead(self, tmpdir):
+        with pytest.raises(omero.ClientError):
+            self.download(tmpdir, "x" * 100, short=10)
+
+
+class MockDownloadSession(object):
+
+    def __init__(self, data, short):
+        self.data = data
+        self.short = short
+
+    def getQueryService(self):
+        return self
+
+    def get(self, type, id, ctx):
+        ofile = OriginalFileI(id, False)
+        ofile.size = rlong(len(self.data))
+        return ofile
+
+    def createRawFileStore(self):
+        return MockRawFileStore(self.data, self.short)
+
+
+class MockRawFileStore(object):
+
+    def __init__(self, data, short):
+        self.data = data
+        self.short = short
+
+    def setFileId(self, id, ctx):
+        pass
+
+    def read(self, offset, length):
+        if self.short is not None and offset >= self.short:
+            length -= 1
+        return self.data[offset:offset + length]
+
+    def close(self):
+        pass
+
+
+class MockProxy(object):
+
+    def __init__(self, delay):
+        self.delay = delay
+
+    def ice_ping(self):
+        import time
+        time.sleep(self.delay)
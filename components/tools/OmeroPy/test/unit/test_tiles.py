@@ -0,0 +1,164 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+
+#
+# Copyright (C) 2026 University of Dundee & Open Microscopy Environment.
+# All rights reserved.
+#
+# This program is free software; you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation; either version 2 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License along
+# with this program; if not, write to the Free Software Foundation, Inc.,
+# 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+"""
+Tests of the tile loops in omero.util.tiles
+"""
+
+import threading
+
+import pytest
+
+from omero.util.tiles import ParallelRPSTileData
+from omero.util.tiles import ParallelRPSTileLoop
+from omero.util.tiles import TileLoopIteration
+
+
+class MockPixels(object):
+
+    def __init__(self, sizeX, sizeY, sizeZ=1, sizeC=1, sizeT=1):
+        self.id = self
+        self.loaded = True
+        self.sizes = (sizeX, sizeY, sizeZ, sizeC, sizeT)
+
+    def getId(self):
+        return self
+
+    def getValue(self):
+        return 1
+
+    def __getattr__(self, name):
+        dims = ("getSizeX", "getSizeY", "getSizeZ", "getSizeC", "getSizeT")
+        if name in dims:
+            value = self.sizes[dims.index(name)]
+            return lambda: MockValue(value)
+        raise AttributeError(name)
+
+
+class MockValue(object):
+
+    def __init__(self, value):
+        self.value = value
+
+    def getValue(self):
+        return self.value
+
+
+class MockStore(object):
+
+    def __init__(self, session, fail_on=None):
+        self.session = session
+        self.fail_on = fail_on
+        self.closed = False
+        self.saved = 0
+        self.written = 0
+
+    def setPixelsId(self, id, bypass):
+        pass
+
+    def setTile(self, buffer, z, c, t, x, y, w, h):
+        if (x, y) == self.fail_on:
+            raise Exception("MOCK EXCEPTION")
+        with self.session.lock:
+            self.session.tiles.append((z, c, t, x, y, w, h))
+        self.written += 1
+
+    def save(self):
+        # As on the server, a store which wrote nothing returns null
+        self.saved += 1
+        if self.written:
+            return "saved"
+        return None
+
+    def close(self):
+        self.closed = True
+
+
+class MockSession(object):
+
+    def __init__(self, fail_on=None):
+        self.fail_on = fail_on
+        self.stores = []
+        self.tiles = []
+        self.lock = threading.Lock()
+
+    def createRawPixelsStore(self):
+        store = MockStore(self, self.fail_on)
+        self.stores.append(store)
+        return store
+
+
+class Iteration(TileLoopIteration):
+
+    def run(self, data, z, c, t, x, y, tileWidth, tileHeight, tileCount):
+        data.setTile([0] * tileWidth * tileHeight,
+                     z, c, t, x, y, tileWidth, tileHeight)
+
+
+class TestParallelRPSTileLoop(object):
+
+    def testWritesEveryTileAndSavesOnce(self):
+        session = MockSession()
+        loop = ParallelRPSTileLoop(session, MockPixels(100, 50, sizeZ=2),
+                                   stores=3, maxInFlightBytes=1000)
+        count = loop.forEachTile(20, 20, Iteration())
+        assert count == 5 * 3 * 2
+        assert len(session.tiles) == count
+        assert len(set(session.tiles)) == count
+        assert len(session.stores) == 3
+        assert sum(s.saved for s in session.stores) == 1
+        assert [s for s in session.stores if s.saved][0].written
+        assert all(s.closed for s in session.stores)
+        assert loop.getPixels() == "saved"
+
+    def testErrorPreventsSave(self):
+        session = MockSession(fail_on=(20, 20))
+        loop = ParallelRPSTileLoop(session, MockPixels(100, 50),
+                                   stores=2, maxInFlightBytes=400)
+        with pytest.raises(Exception):
+            loop.forEachTile(20, 20, Iteration())
+        assert [s.saved for s in session.stores] == [0, 0]
+        assert all(s.closed for s in session.stores)
+
+    def testOversizedTile(self):
+        session = MockSession()
+        loop = ParallelRPSTileLoop(session, MockPixels(100, 100),
+                                   stores=2, maxInFlightBytes=10)
+        assert loop.forEachTile(50, 50, Iteration()) == 4
+        assert len(session.tiles) == 4
+
+    def testFirstStoreWritesNothing(self, monkeypatch):
+        write = ParallelRPSTileData._write
+
+        def idle_first(self, index, rps):
+            if index != 0:
+                write(self, index, rps)
+
+        monkeypatch.setattr(ParallelRPSTileData, "_write", idle_first)
+        session = MockSession()
+        loop = ParallelRPSTileLoop(session, MockPixels(100, 50),
+                                   stores=3, maxInFlightBytes=1000)
+        assert loop.forEachTile(20, 20, Iteration()) == 15
+        assert session.stores[0].written == 0
+        assert session.stores[0].saved == 0
+        assert sum(s.saved for s in session.stores) == 1
+        assert all(s.closed for s in session.stores)
+        assert loop.getPixels() == "saved"
@@ -0,0 +1,298 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+
+#
+# Copyright (C) 2026 University of Dundee & Open Microscopy Environment.
+# All rights reserved.
+#
+# This program is free software; you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation; either version 2 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License along
+# with this program; if not, write to the Free Software Foundation, Inc.,
+# 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+"""
+Tests of the fileset uploads in omero.util.upload
+"""
+
+import hashlib
+import threading
+
+import pytest
+
+from omero.clients import AdaptiveBlockSize
+from omero.rtypes import rlong, rstring
+from omero.util.upload import FilesetUploader
+from omero.util.upload import checksum_provider
+from omero.util.upload import file_checksum
+from omero.util.upload import find_existing_files
+from omero.util.upload import UploadJournal
+
+
+class MockClient(object):
+
+    def getDefaultBlockSize(self):
+        return 7
+
+    def getAdaptiveBlockSize(self, prx=None):
+        return None
+
+
+class MockUploader(object):
+
+    def __init__(self, proc, index):
+        self.proc = proc
+        self.index = index
+        self.data = proc.data.setdefault(index, bytearray())
+        self.closed = False
+
+    def write(self, block, offset, length):
+        assert length == len(block)
+        assert offset <= len(self.data)
+        with self.proc.lock:
+            if self.proc.writes == self.proc.failAfter:
+                raise Exception("Connection lost")
+            self.proc.writes += 1
+            self.proc.written += length
+        self.data[offset:offset + length] = block
+
+    def begin_write(self, block, offset, length):
+        try:
+            self.write(block, offset, length)
+        except Exception, e:
+            return e
+        return None
+
+    def end_write(self, result):
+        if result is not None:
+            raise result
+
+    def size(self):
+        return len(self.data)
+
+    def close(self):
+        self.closed = True
+
+
+class MockFileset(object):
+
+    def __init__(self, id):
+        self.id = self
+        self.val = id
+
+
+class MockProcess(object):
+
+    def __init__(self, fail=None, failAfter=None, filesetId=1):
+        self.fail = fail
+        self.failAfter = failAfter
+        self.fileset = MockFileset(filesetId)
+        self.uploaders = {}
+        self.data = {}
+        self.writes = 0
+        self.written = 0
+        self.lock = threading.Lock()
+
+    def getFileset(self):
+        return self.fileset
+
+    def getUploader(self, index):
+        if index == self.fail:
+            raise Exception("getUploader(%s)" % index)
+        with self.lock:
+            rv = self.uploaders[index] = MockUploader(self, index)
+        return rv
+
+
+class TestFilesetUploader(object):
+
+    def files(self, tmpdir, count=12):
+        paths = []
+        for i in range(count):
+            f = tmpdir.join("%02d.fake" % i)
+            f.write("x" * (i * 5))
+            paths.append(str(f))
+        return paths
+
+    def testUpload(self, tmpdir):
+        paths = self.files(tmpdir)
+        proc = MockProcess()
+        progress = []
+        hashes = FilesetUploader(MockClient(), workers=3).upload(
+            proc, paths, progress=lambda *args: progress.append(args))
+        assert hashes == [hashlib.sha1("x" * (i * 5)).hexdigest()
+                          for i in range(len(paths))]
+        assert progress == [(i + 1, len(paths)) for i in range(len(paths))]
+        for (i, rfs) in proc.uploaders.items():
+            assert str(rfs.data) == "x" * (i * 5)
+            assert rfs.closed
+
+    def testResume(self, tmpdir):
+        paths = self.files(tmpdir)
+        total = sum(i * 5 for i in range(len(paths)))
+        expected = FilesetUploader(MockClient()).upload(
+            MockProcess(), paths)
+        journal = UploadJournal(tmpdir.join("journal"))
+        proc = MockProcess(failAfter=20)
+        with pytest.raises(Exception):
+            FilesetUploader(MockClient(), workers=1,
+                            journal=journal).upload(proc, paths)
+        sent = proc.written
+        assert 0 < sent < total
+        proc.failAfter = None
+        hashes = FilesetUploader(MockClient(), workers=2,
+                                 journal=journal).upload(proc, paths)
+        assert hashes == expected
+        assert proc.written == total
+        for (i, data) in proc.data.items():
+            assert str(data) == "x" * (i * 5)
+        # Nothing left to send
+        FilesetUploader(MockClient(), journal=journal).upload(proc, paths)
+        assert proc.written == total
+        # Changed files and other filesets are sent again
+        tmpdir.join("03.fake").write("y" * 15)
+        FilesetUploader(MockClient(), journal=journal).upload(proc, paths)
+        assert proc.written == total + 15
+        FilesetUploader(MockClient(), journal=journal).upload(
+            MockProcess(filesetId=2), paths)
+        journal.remove()
+        assert not tmpdir.join("journal").exists()
+
+    @pytest.mark.parametrize("algorithm", ["MD5-128", "Adler-32", "CRC-32"])
+    def testAlgorithm(self, tmpdir, algorithm):
+        paths = self.files(tmpdir, count=3)
+        hashes = FilesetUploader(
+            MockClient(), algorithm=algorithm, depth=3).upload(
+                MockProcess(), paths)
+        expected = []
+        for path in paths:
+            digest = checksum_provider(algorithm)
+            digest.update(open(path, "rb").read())
+            expected.append(digest.hexdigest())
+        assert hashes == expected
+
+    def testAdaptive(self, tmpdir):
+        paths = self.files(tmpdir)
+        expected = FilesetUploader(MockClient()).upload(
+            MockProcess(), paths)
+        adaptive = AdaptiveBlockSize(initial=7, minimum=2, maximum=40)
+        proc = MockProcess()
+        hashes = FilesetUploader(MockClient(), adaptive=adaptive).upload(
+            proc, paths)
+        assert hashes == expected
+        for (i, data) in proc.data.items():
+            assert str(data) == "x" * (i * 5)
+        with pytest.raises(ValueError):
+            FilesetUploader(MockClient(), adaptive=adaptive,
+                            journal=UploadJournal(tmpdir.join("journal")))
+
+    def testUploadFailure(self, tmpdir):
+        paths = self.files(tmpdir)
+        proc = MockProcess(fail=5)
+        with pytest.raises(Exception):
+            FilesetUploader(MockClient(), workers=2).upload(proc, paths)
+        for rfs in proc.uploaders.values():
+            assert rfs.closed
+
+    def testBadArguments(self):
+        with pytest.raises(ValueError):
+            FilesetUploader(MockClient(), workers=0)
+        with pytest.raises(ValueError):
+            FilesetUploader(MockClient(), block_size=0)
+        with pytest.raises(ValueError):
+            FilesetUploader(MockClient(), depth=0)
+        with pytest.raises(ValueError):
+            FilesetUploader(MockClient(), algorithm="Murmur3-128")
+
+
+class TestChecksumProvider(object):
+
+    @pytest.mark.parametrize("algorithm,expected", [
+        ("SHA1-160", hashlib.sha1("abcdef").hexdigest()),
+        ("MD5-128", hashlib.md5("abcdef").hexdigest()),
+        ("Adler-32", "56021e08"),
+        ("CRC-32", "ef398e4b"),
+    ])
+    def testIncremental(self, algorithm, expected):
+        digest = checksum_provider(algorithm)
+        digest.update("abc")
+        digest.update("def")
+        assert digest.hexdigest() == expected
+
+    @pytest.mark.parametrize("algorithm", ["Murmur3-32", "File-Size-64",
+                                           "Unknown"])
+    def testUnsupported(self, algorithm):
+        with pytest.raises(ValueError):
+            checksum_provider(algorithm)
+
+
+class MockQueryService(object):
+
+    def __init__(self, files):
+        self.files = files
+        self.queries = []
+
+    def projection(self, sql, params, ctx):
+        self.queries.append(params)
+        hashes = [h.val for h in params.map["hashes"].val]
+        algorithm = params.map["algorithm"].val
+        return [[rlong(id), rstring(h)]
+                for (id, (h, a)) in sorted(self.files.items())
+                if h in hashes and a == algorithm]
+
+
+class MockSession(object):
+
+    def __init__(self, query):
+        self.query = query
+
+    def getQueryService(self):
+        return self.query
+
+
+class MockSessionClient(object):
+
+    def __init__(self, files):
+        self.sf = MockSession(MockQueryService(files))
+
+    def getContext(self, group=None):
+        return {"omero.group": str(group)}
+
+
+class TestFindExistingFiles(object):
+
+    def testFileChecksum(self, tmpdir):
+        f = tmpdir.join("data")
+        f.write("abcdef" * 1000)
+        assert file_checksum(str(f), block_size=7) == \
+            hashlib.sha1("abcdef" * 1000).hexdigest()
+        assert file_checksum(str(f), "MD5-128") == \
+            hashlib.md5("abcdef" * 1000).hexdigest()
+        tmpdir.join("empty").write("")
+        assert file_checksum(str(tmpdir.join("empty"))) == \
+            hashlib.sha1("").hexdigest()
+
+    def testFind(self, tmpdir):
+        paths = []
+        for (i, text) in enumerate(["a", "b", "a", "c"]):
+            f = tmpdir.join("%s.fake" % i)
+            f.write(text)
+            paths.append(str(f))
+        sha1 = dict((t, hashlib.sha1(t).hexdigest()) for t in "abc")
+        client = MockSessionClient({
+            1: (sha1["a"], "SHA1-160"),
+            2: (sha1["b"], "SHA1-160"),
+            3: (sha1["a"], "SHA1-160"),
+            4: (sha1["c"], "MD5-128")})
+        rv = find_existing_files(client, paths, batch=2)
+        assert rv == [(sha1["a"], [1, 3]), (sha1["b"], [2]),
+                      (sha1["a"], [1, 3]), (sha1["c"], [])]
+        assert len(client.sf.query.queries) == 2
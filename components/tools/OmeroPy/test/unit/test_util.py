@@ -31,6 +31,7 @@ from path import path
 from omero.util.text import CSVStyle, JSONStyle, PlainStyle, TableBuilder
 from omero.util.upgrade_check import UpgradeCheck
 from omero.util.temp_files import manager
+from omero.util.concurrency import OrderedPrefetcher
 from omero.util import get_user_dir
 from omero_version import omero_version
 import omero.util.image_utils as image_utils
@@ -245,6 +246,60 @@ class TestTempFileManager(object):
         assert manager.tmpdir() == path(get_user_dir()) / "omero" / "tmp"
 
 
+class TestOrderedPrefetcher(object):
+
+    @pytest.mark.parametrize('workers', [1, 3])
+    @pytest.mark.parametrize('look_ahead', [1, 4])
+    def testOrder(self, workers, look_ahead):
+        import random
+        import time
+
+        def load(ctx, item):
+            time.sleep(random.random() / 1000)
+            return item * 2
+
+        items = range(50)
+        rv = list(OrderedPrefetcher(items, load, workers=workers,
+                                    look_ahead=look_ahead))
+        assert rv == [i * 2 for i in items]
+
+    def testSetupAndTeardownPerWorker(self):
+        created = []
+        closed = []
+
+        def setup():
+            ctx = object()
+            created.append(ctx)
+            return ctx
+
+        rv = list(OrderedPrefetcher(range(10), lambda ctx, i: i, workers=3,
+                                    setup=setup, teardown=closed.append))
+        assert rv == range(10)
+        assert len(created) == 3
+        assert sorted(closed) == sorted(created)
+
+    def testExceptionInOrder(self):
+        def load(ctx, item):
+            if item == 5:
+                raise ValueError(item)
+            return item
+
+        seen = []
+        with pytest.raises(ValueError):
+            for i in OrderedPrefetcher(range(10), load, workers=2):
+                seen.append(i)
+        assert seen == range(5)
+
+    def testEarlyExit(self):
+        closed = []
+        prefetcher = OrderedPrefetcher(
+            range(100), lambda ctx, i: i, workers=2, look_ahead=2,
+            setup=object, teardown=closed.append)
+        for i in prefetcher:
+            break
+        assert len(closed) == 2
+
+
 class TestImageUtils(object):
 
     @pytest.mark.parametrize(
@@ -66,6 +66,18 @@ for i, p in enumerate(planes):
         " max:", p.max(), " sum:", p.sum()
 
 
+# Retrieve a whole Z-stack
+# ========================
+# getStack() returns a generator of 3D numpy arrays (z, y, x). Large stacks
+# are transferred in chunks of several Z-sections rather than all at once,
+# so processing can start as soon as the first chunk has arrived.
+c, t = 0, 0
+print "\nZ stack in chunks:"
+for chunk in pixels.getStack(c, t):
+    print "Chunk shape:", chunk.shape, " min:", chunk.min(),\
+        " max:", chunk.max()
+
+
 # Retrieve a given hypercube
 # ==========================
 zct_list = []